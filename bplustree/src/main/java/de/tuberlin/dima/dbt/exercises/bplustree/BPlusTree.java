@@ -1,6 +1,9 @@
 package de.tuberlin.dima.dbt.exercises.bplustree;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
  * Implementation of a B+ tree.
@@ -9,6 +12,12 @@ import java.util.*;
  * constructor. Each node has at least {capacity/2} and at most {capacity} many
  * keys. The values are strings and are stored at the leaves of the tree.
  * <p>
+ * Leaves and inner nodes can also be given separate capacities, e.g. to size
+ * inner nodes for the CPU cache and leaves for a disk page. The bounds above
+ * then apply per level: leaves hold between {leafCapacity/2} and
+ * {leafCapacity} keys, inner nodes between {innerCapacity/2} and
+ * {innerCapacity} keys.
+ * <p>
  * For each inner node, the following conditions hold:
  * <p>
  * {pre}
@@ -19,8 +28,11 @@ import java.util.*;
  * - All keys in {children[i].getKeys()} are smaller than {keys[i]}.
  * - All keys in {children[j].getKeys()} are greater or equal than {keys[i]}
  * if j > i.
+ * <p>
+ * Every key is stored at most once. Inserting a key that already exists
+ * replaces its value.
  */
-public class BPlusTree {
+public class BPlusTree implements KeyValueStore {
 
     ///// Implement these methods
 
@@ -34,18 +46,8 @@ public class BPlusTree {
                 parents.push(innerNode);
             }
             // TODO: traverse inner nodes to find leaf node
-            int branch = -1;
-
-            Integer[] currentNodeKeys = innerNode.getKeys();
-            for (int i = 0; i< currentNodeKeys.length; i++) {
-                if (currentNodeKeys[i] == null) break;
-                branch = i; // take left child
-                if (currentNodeKeys[i] <= key) {
-                    branch = i+1; // take right child
-                } else {
-                    break;
-                }
-            }
+            // branch = number of keys <= key, i.e. take the right child of every smaller or equal key
+            int branch = innerNode.childIndex(key);
 
             Node[] children = innerNode.getChildren();
             if (branch != -1 && branch < children.length) {
@@ -61,20 +63,33 @@ public class BPlusTree {
         }
     }
 
+    /**
+     * Descends all keys in keys[from..to) in lock step, one tree level per
+     * round. Each round only issues independent loads, so the cache misses of
+     * the different keys overlap instead of being paid one after another.
+     */
+    private void findLeafNodes(Integer[] keys, int from, int to, Node[] cursors) {
+        Arrays.fill(cursors, 0, to - from, root);
+        boolean descending = true;
+        while (descending) {
+            descending = false;
+            for (int i = from; i < to; i++) {
+                Node node = cursors[i - from];
+                if (node instanceof InnerNode) {
+                    InnerNode innerNode = (InnerNode) node;
+                    int branch = innerNode.childIndex(keys[i]);
+                    cursors[i - from] = branch == -1 ? null : innerNode.getChildren()[branch];
+                    descending = true;
+                }
+            }
+        }
+    }
+
     private String lookupInLeafNode(Integer key, LeafNode node) {
         // TODO: lookup value in leaf node
         if (node == null) return null;
-        Integer[] keys = node.getKeys();
-        String[] values = node.getValues();
-
-        for (int i =0; i < keys.length; i++) {
-            if (keys[i] == null) continue;
-
-            if (keys[i].equals(key)) {
-                return values[i];
-            }
-        }
-        return null;
+        int pos = node.indexOf(key);
+        return pos == -1 ? null : node.getValue(pos);
     }
 
     private void insertIntoLeafNode(Integer key, String value,
@@ -85,6 +100,8 @@ public class BPlusTree {
             fillLeafNode(key, value, node);
 
         } else { // full node -> split!
+            TreeEvents.Split event = new TreeEvents.Split();
+            event.begin();
             List<Integer> keys = new ArrayList<>(Arrays.asList(node.getKeys()));
             List<String> values = new ArrayList<>(Arrays.asList(node.getValues()));
 
@@ -104,13 +121,85 @@ public class BPlusTree {
             node.setValues(lValues.toArray(new String[0]));
 
             // create new leaf node for right child node
-            LeafNode rNode = new LeafNode(rKeys.toArray(new Integer[0]), rValues.toArray(new String[0]), this.capacity);
+            LeafNode rNode = newLeafNode(rKeys.toArray(new Integer[0]), rValues.toArray(new String[0]));
+            if (event.shouldCommit()) {
+                event.level = 0;
+                event.leftSize = lKeys.size();
+                event.rightSize = rKeys.size();
+                event.commit();
+            }
             // propagate split to the parents, splitKey is the first key in the right leaf node (leaf node exception)
             propagateToParents(rKeys.get(0), node, rNode, parents);
         }
     }
 
 
+    private LeafNode newLeafNode(Integer[] keys, String[] values) {
+        LeafNode node = nodePool != null
+                ? nodePool.leafNode(keys, values)
+                : new LeafNode(keys, values, this.leafCapacity);
+        if (fingerprints) {
+            node.enableFingerprints();
+        }
+        if (compressedKeys) {
+            node.compressKeys();
+        }
+        if (valueDictionary != null) {
+            node.encodeValues(valueDictionary);
+        }
+        return node;
+    }
+
+    private InnerNode newInnerNode(Integer[] keys, Node[] children) {
+        InnerNode node = nodePool != null
+                ? nodePool.innerNode(keys, children)
+                : new InnerNode(keys, children, this.innerCapacity);
+        if (learnedRouting) {
+            node.enableLearnedRouting();
+        }
+        return node;
+    }
+
+    private void releaseNode(Node node) {
+        if (nodePool != null) {
+            nodePool.release(node);
+        }
+    }
+
+    /**
+     * Refresh the subtree counts along a root-to-leaf path after an insert or
+     * delete, deepest node first. Nodes created by splits already counted
+     * their children when they were built.
+     */
+    private void recount(List<InnerNode> path) {
+        for (InnerNode node : path) {
+            node.recount();
+        }
+    }
+
+    private void forEachInnerNode(Node node, Consumer<InnerNode> action) {
+        if (node instanceof InnerNode) {
+            action.accept((InnerNode) node);
+            for (Node child : ((InnerNode) node).getChildren()) {
+                if (child != null) {
+                    forEachInnerNode(child, action);
+                }
+            }
+        }
+    }
+
+    private void forEachLeaf(Node node, Consumer<LeafNode> action) {
+        if (node instanceof LeafNode) {
+            action.accept((LeafNode) node);
+        } else if (node instanceof InnerNode) {
+            for (Node child : ((InnerNode) node).getChildren()) {
+                if (child != null) {
+                    forEachLeaf(child, action);
+                }
+            }
+        }
+    }
+
     private Boolean nodeHasSpace(Node node) {
         Integer[] keys = node.getKeys();
         int counter = 0;
@@ -154,14 +243,19 @@ public class BPlusTree {
     }
 
     private void propagateToParents(Integer splitKey, Node leftNode, Node rightNode, Deque<InnerNode> parents) {
+        structureVersion++;
         // we keep the leftNode in case we have to add it as a child of the root
         if (parents.isEmpty()) {
             // new root if there's no parent: split reached the root
-            InnerNode newRoot = new InnerNode(this.capacity);
-            newRoot.setKeys(new Integer[]{splitKey});
-            newRoot.setChildren(new Node[]{leftNode,rightNode});
+            TreeEvents.RootGrowth event = new TreeEvents.RootGrowth();
+            event.begin();
+            InnerNode newRoot = newInnerNode(new Integer[]{splitKey}, new Node[]{leftNode,rightNode});
 
             this.root = newRoot;
+            if (event.shouldCommit()) {
+                event.height = levelOf(newRoot) + 1;
+                event.commit();
+            }
             return;
         }
 
@@ -178,6 +272,8 @@ public class BPlusTree {
     }
 
     private void splitInnerNode(InnerNode lNode, Integer splitKey, Node newChild, Deque<InnerNode> parents) {
+        TreeEvents.Split event = new TreeEvents.Split();
+        event.begin();
         // add splitKey to overflow
         List<Integer> keys = new ArrayList<>(Arrays.asList(lNode.getKeys()));
         List<Node> children = new ArrayList<>(Arrays.asList(lNode.getChildren()));
@@ -199,7 +295,13 @@ public class BPlusTree {
         lNode.setChildren(lChildren.toArray(new Node[0]));
 
         // create new inner node for right half
-        InnerNode rNode = new InnerNode(rKeys.toArray(new Integer[0]), rChildren.toArray(new Node[0]), this.capacity);
+        InnerNode rNode = newInnerNode(rKeys.toArray(new Integer[0]), rChildren.toArray(new Node[0]));
+        if (event.shouldCommit()) {
+            event.level = levelOf(lNode);
+            event.leftSize = lKeys.size();
+            event.rightSize = rKeys.size();
+            event.commit();
+        }
 
         // propagate the split key (= middle key m) to the parent
         propagateToParents(keys.get(splitPoint), lNode, rNode, parents);
@@ -213,7 +315,7 @@ public class BPlusTree {
         removeFromLeafNode(key, node);
 
         // easy steal when node is at least capacity+1 -> no changes, simply return deleted key's value
-        if (getNodeSize(node) >= this.capacity/2 || parents.isEmpty()) {
+        if (getNodeSize(node) >= minNodeSize(node) || parents.isEmpty()) {
             return value;
         }
 
@@ -226,6 +328,18 @@ public class BPlusTree {
 
         return null;
     }
+    /**
+     * Distance of the node from the leaves, which are at level 0.
+     */
+    private static int levelOf(Node node) {
+        int level = 0;
+        while (node instanceof InnerNode) {
+            node = ((InnerNode) node).getChildren()[0];
+            level++;
+        }
+        return level;
+    }
+
     private int getNodeSize(Node node) {
         List<Integer> keys = new ArrayList<>(Arrays.asList(node.getKeys()));
         int counter = 0;
@@ -236,6 +350,11 @@ public class BPlusTree {
         return counter;
     }
 
+    private int minNodeSize(Node node) {
+        int capacity = node instanceof LeafNode ? this.leafCapacity : this.innerCapacity;
+        return capacity / 2;
+    }
+
     private void removeFromLeafNode(Integer key, LeafNode node) {
         List<Integer> keys = new ArrayList<>(Arrays.asList(node.getKeys()));
         List<String> values = new ArrayList<>(Arrays.asList(node.getValues()));
@@ -315,7 +434,9 @@ public class BPlusTree {
         int size = getNodeSize(sibling);
 
         // only steal when sibling has more than the minimum keys (capacity/2+1)
-        if (size > this.capacity / 2) {
+        if (size > minNodeSize(sibling)) {
+            TreeEvents.Steal event = new TreeEvents.Steal();
+            event.begin();
             List<Integer> siblingKeys = new ArrayList<>(Arrays.asList(sibling.getKeys()));
             List<Integer> currentKeys = new ArrayList<>(Arrays.asList(currentNode.getKeys()));
 
@@ -355,6 +476,13 @@ public class BPlusTree {
             }
             parent.setKeys(parentKeys.toArray(new Integer[0]));
 
+            structureVersion++;
+            if (event.shouldCommit()) {
+                event.level = levelOf(currentNode);
+                event.nodeSize = getNodeSize(currentNode);
+                event.siblingSize = getNodeSize(sibling);
+                event.commit();
+            }
             return true;
         }
 
@@ -362,21 +490,27 @@ public class BPlusTree {
     }
 
     private void mergeWithSibling(Node sibling, Node currentNode, InnerNode parent, int currentIdx, boolean isRightSibling) {
+        structureVersion++;
+        TreeEvents.Merge event = new TreeEvents.Merge();
+        event.begin();
         List<Integer> siblingKeys = new ArrayList<>(Arrays.asList(sibling.getKeys()));
         List<Node> children = new ArrayList<>(Arrays.asList(parent.getChildren()));
         List<Integer> parentKeys = new ArrayList<>(Arrays.asList(parent.getKeys()));
 
+        // all remaining entries of the current node move over, not only the first one
+        int size = getNodeSize(currentNode);
+        List<Integer> currentKeys = Arrays.asList(currentNode.getKeys()).subList(0, size);
+
         if (isRightSibling) {
             // merge with right sibling
-            Integer key = currentNode.getKeys()[0];
-            siblingKeys.add(0, key);
+            siblingKeys.addAll(0, currentKeys);
             sibling.setKeys(siblingKeys.toArray(new Integer[0]));
 
             if (currentNode instanceof LeafNode) {
-                List<String> currentValues = new ArrayList<>(Arrays.asList(((LeafNode) currentNode).getValues()));
+                List<String> currentValues = Arrays.asList(((LeafNode) currentNode).getValues()).subList(0, size);
                 List<String> siblingValues = new ArrayList<>(Arrays.asList(((LeafNode) sibling).getValues()));
 
-                siblingValues.add(0, currentValues.get(0));
+                siblingValues.addAll(0, currentValues);
                 ((LeafNode) sibling).setValues(siblingValues.toArray(new String[0]));
             }
 
@@ -388,16 +522,15 @@ public class BPlusTree {
 
         } else {
             // merge with left sibling
-            Integer key = currentNode.getKeys()[0];
-            int insertPos = findInsertPosition(siblingKeys, key);
-            siblingKeys.add(insertPos, key);
+            int insertPos = getNodeSize(sibling);
+            siblingKeys.addAll(insertPos, currentKeys);
             sibling.setKeys(siblingKeys.toArray(new Integer[0]));
 
             if (currentNode instanceof LeafNode) {
-                List<String> currentValues = new ArrayList<>(Arrays.asList(((LeafNode) currentNode).getValues()));
+                List<String> currentValues = Arrays.asList(((LeafNode) currentNode).getValues()).subList(0, size);
                 List<String> siblingValues = new ArrayList<>(Arrays.asList(((LeafNode) sibling).getValues()));
 
-                siblingValues.add(insertPos, currentValues.get(0));
+                siblingValues.addAll(insertPos, currentValues);
                 ((LeafNode) sibling).setValues(siblingValues.toArray(new String[0]));
             }
 
@@ -409,9 +542,23 @@ public class BPlusTree {
             parent.setKeys(moveNullsToEnd(parentKeys.toArray(new Integer[0])));
         }
 
+        releaseNode(currentNode);
+        if (event.shouldCommit()) {
+            event.level = levelOf(sibling);
+            event.mergedSize = getNodeSize(sibling);
+            event.commit();
+        }
+
         // handle case where parent becomes empty
         if (getNodeSize(parent) == 0) {
+            TreeEvents.RootCollapse collapse = new TreeEvents.RootCollapse();
+            collapse.begin();
             this.root = sibling;
+            releaseNode(parent);
+            if (collapse.shouldCommit()) {
+                collapse.height = levelOf(sibling) + 1;
+                collapse.commit();
+            }
         }
     }
 
@@ -435,6 +582,326 @@ public class BPlusTree {
         return nonNulls.toArray(new Integer[0]);
     }
 
+    private void deleteRangeFromLeafNode(long from, long to, LeafNode node) {
+        List<Integer> keys = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        Integer[] nodeKeys = node.getKeys();
+        String[] nodeValues = node.getValues();
+
+        for (int i = 0; i < nodeKeys.length; i++) {
+            if (nodeKeys[i] == null) break;
+            if (nodeKeys[i] < from || nodeKeys[i] > to) {
+                keys.add(nodeKeys[i]);
+                values.add(nodeValues[i]);
+            } else if (membershipFilter != null) {
+                membershipFilter.remove(nodeKeys[i]);
+            }
+        }
+
+        node.setKeys(keys.toArray(new Integer[0]));
+        node.setValues(values.toArray(new String[0]));
+    }
+
+    /**
+     * Removes all keys in [from, to] below the given inner node, which covers
+     * the keys in [low, high]. Children that lie completely inside the range
+     * are dropped wholesale, only the (at most two) children on the range
+     * boundaries are descended into and rebalanced afterwards.
+     */
+    private void deleteRangeFromInnerNode(long from, long to, InnerNode node,
+                                          long low, long high) {
+        Integer[] nodeKeys = node.getKeys();
+        Node[] nodeChildren = node.getChildren();
+        int size = getNodeSize(node);
+
+        List<Integer> keys = new ArrayList<>();
+        List<Node> children = new ArrayList<>();
+
+        for (int i = 0; i <= size; i++) {
+            Node child = nodeChildren[i];
+            // child i holds the keys in [childLow, childHigh]
+            long childLow = i == 0 ? low : nodeKeys[i - 1];
+            long childHigh = i == size ? high : nodeKeys[i] - 1L;
+
+            if (childLow >= from && childHigh <= to) {
+                if (membershipFilter != null) {
+                    forEachLeaf(child, leaf -> {
+                        for (Integer key : leaf.getKeys()) {
+                            if (key != null) {
+                                membershipFilter.remove(key);
+                            }
+                        }
+                    });
+                }
+                if (nodePool != null) {
+                    nodePool.releaseSubtree(child);
+                }
+                continue;
+            }
+            if (childHigh >= from && childLow <= to) {
+                if (child instanceof LeafNode) {
+                    deleteRangeFromLeafNode(from, to, (LeafNode) child);
+                } else {
+                    deleteRangeFromInnerNode(from, to, (InnerNode) child, childLow, childHigh);
+                }
+            }
+            // the separator left of a child is its lower bound, the first child needs none
+            if (!children.isEmpty()) {
+                keys.add((int) childLow);
+            }
+            children.add(child);
+        }
+
+        node.setKeys(keys.toArray(new Integer[0]));
+        node.setChildren(children.toArray(new Node[0]));
+        rebalanceChildren(node);
+    }
+
+    /**
+     * Rebalances every underfull child of the node with a neighbour until all
+     * children are filled at least to the minimum, or only one child is left.
+     */
+    private void rebalanceChildren(InnerNode node) {
+        int size = getNodeSize(node);
+        List<Integer> keys = new ArrayList<>(Arrays.asList(node.getKeys()).subList(0, size));
+        List<Node> children = new ArrayList<>(Arrays.asList(node.getChildren()).subList(0, size + 1));
+        boolean changed = false;
+
+        int pos = 0;
+        while (pos < children.size() && children.size() > 1) {
+            if (getNodeSize(children.get(pos)) >= minNodeSize(children.get(pos))) {
+                pos++;
+                continue;
+            }
+            int left = pos == children.size() - 1 ? pos - 1 : pos;
+            rebalanceSiblings(keys, children, left);
+            changed = true;
+            pos = left;
+        }
+
+        if (changed) {
+            node.setKeys(keys.toArray(new Integer[0]));
+            node.setChildren(children.toArray(new Node[0]));
+        }
+    }
+
+    /**
+     * Redistributes the entries of children[left] and children[left + 1]
+     * evenly, or merges them into the left one if they fit into a single node.
+     */
+    private void rebalanceSiblings(List<Integer> keys, List<Node> children, int left) {
+        // only one of the two is committed, depending on whether the nodes fit into one
+        TreeEvents.Merge merge = new TreeEvents.Merge();
+        TreeEvents.Steal steal = new TreeEvents.Steal();
+        merge.begin();
+        steal.begin();
+        Node lNode = children.get(left);
+        Node rNode = children.get(left + 1);
+        int lSize = getNodeSize(lNode);
+        int rSize = getNodeSize(rNode);
+
+        List<Integer> mergedKeys = new ArrayList<>(Arrays.asList(lNode.getKeys()).subList(0, lSize));
+        if (lNode instanceof InnerNode) {
+            // inner nodes pull the separator down between their keys
+            mergedKeys.add(keys.get(left));
+        }
+        mergedKeys.addAll(Arrays.asList(rNode.getKeys()).subList(0, rSize));
+
+        List<Object> payload = new ArrayList<>(Arrays.asList(lNode.getPayload()).subList(0, lSize + (lNode instanceof InnerNode ? 1 : 0)));
+        payload.addAll(Arrays.asList(rNode.getPayload()).subList(0, rSize + (rNode instanceof InnerNode ? 1 : 0)));
+
+        int capacity = lNode instanceof LeafNode ? this.leafCapacity : this.innerCapacity;
+        if (mergedKeys.size() <= capacity) {
+            setEntries(lNode, mergedKeys, payload);
+            keys.remove(left);
+            children.remove(left + 1);
+            releaseNode(rNode);
+            if (merge.shouldCommit()) {
+                merge.level = levelOf(lNode);
+                merge.mergedSize = mergedKeys.size();
+                merge.commit();
+            }
+            if (lNode instanceof InnerNode) {
+                // an underfull grandchild may have been an only child so far
+                rebalanceChildren((InnerNode) lNode);
+            }
+            return;
+        }
+
+        int splitPoint = mergedKeys.size() / 2;
+        if (lNode instanceof LeafNode) {
+            setEntries(lNode, mergedKeys.subList(0, splitPoint), payload.subList(0, splitPoint));
+            setEntries(rNode, mergedKeys.subList(splitPoint, mergedKeys.size()),
+                       payload.subList(splitPoint, payload.size()));
+            keys.set(left, mergedKeys.get(splitPoint));
+            commitSteal(steal, lNode, rNode);
+        } else {
+            // the middle key moves up as the new separator
+            setEntries(lNode, mergedKeys.subList(0, splitPoint), payload.subList(0, splitPoint + 1));
+            setEntries(rNode, mergedKeys.subList(splitPoint + 1, mergedKeys.size()),
+                       payload.subList(splitPoint + 1, payload.size()));
+            keys.set(left, mergedKeys.get(splitPoint));
+            commitSteal(steal, lNode, rNode);
+            rebalanceChildren((InnerNode) lNode);
+            rebalanceChildren((InnerNode) rNode);
+        }
+    }
+
+    private void commitSteal(TreeEvents.Steal event, Node node, Node sibling) {
+        if (event.shouldCommit()) {
+            event.level = levelOf(node);
+            event.nodeSize = getNodeSize(node);
+            event.siblingSize = getNodeSize(sibling);
+            event.commit();
+        }
+    }
+
+    private void setEntries(Node node, List<Integer> keys, List<Object> payload) {
+        node.setKeys(keys.toArray(new Integer[0]));
+        if (node instanceof LeafNode) {
+            node.setPayload(payload.toArray(new String[0]));
+        } else {
+            node.setPayload(payload.toArray(new Node[0]));
+        }
+    }
+
+    /**
+     * Merges the entries of the delta with keys below high into the given
+     * node, which covers the keys in [low, high). The nodes that replace it
+     * are appended to nodes, and the smallest key below each of them to lows.
+     * A node that overflows is split into as many nodes as needed at once,
+     * instead of once per new entry.
+     */
+    private void upsertIntoNode(Node node, SortedEntries delta, long low, long high,
+                                List<Integer> lows, List<Node> nodes) {
+        if (node instanceof LeafNode) {
+            upsertIntoLeafNode((LeafNode) node, delta, high, lows, nodes);
+        } else {
+            upsertIntoInnerNode((InnerNode) node, delta, low, high, lows, nodes);
+        }
+    }
+
+    private void upsertIntoLeafNode(LeafNode node, SortedEntries delta, long high,
+                                    List<Integer> lows, List<Node> nodes) {
+        Integer[] nodeKeys = node.getKeys();
+        int size = node.size();
+        List<Integer> keys = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+
+        // merge join of the leaf entries and the delta run that falls into the leaf
+        int i = 0;
+        while (delta.hasNext() && delta.peekKey() < high) {
+            Map.Entry<Integer, String> entry = delta.next();
+            int key = entry.getKey();
+            for (; i < size && nodeKeys[i] < key; i++) {
+                keys.add(nodeKeys[i]);
+                values.add(node.getValue(i));
+            }
+            boolean replaced = i < size && nodeKeys[i] == key;
+            if (replaced) {
+                i++;
+            }
+            keys.add(key);
+            values.add(entry.getValue());
+            delta.applied(key, entry.getValue(), replaced);
+        }
+        for (; i < size; i++) {
+            keys.add(nodeKeys[i]);
+            values.add(node.getValue(i));
+        }
+
+        int parts = (keys.size() + leafCapacity - 1) / leafCapacity;
+        if (parts > 1) {
+            structureVersion++;
+        }
+        for (int part = 0; part < parts; part++) {
+            int from = (int) ((long) part * keys.size() / parts);
+            int to = (int) ((long) (part + 1) * keys.size() / parts);
+            Integer[] partKeys = keys.subList(from, to).toArray(new Integer[0]);
+            String[] partValues = values.subList(from, to).toArray(new String[0]);
+            if (part == 0) {
+                node.setKeys(partKeys);
+                node.setValues(partValues);
+                nodes.add(node);
+            } else {
+                TreeEvents.Split event = new TreeEvents.Split();
+                event.begin();
+                nodes.add(newLeafNode(partKeys, partValues));
+                if (event.shouldCommit()) {
+                    // every further part is split off its left neighbour
+                    event.level = 0;
+                    event.leftSize = getNodeSize(nodes.get(nodes.size() - 2));
+                    event.rightSize = partKeys.length;
+                    event.commit();
+                }
+            }
+            lows.add(partKeys[0]);
+        }
+    }
+
+    /**
+     * Only the children that receive entries are descended into; the others
+     * are kept as they are. The node is rewritten once, after all of its
+     * children are done.
+     */
+    private void upsertIntoInnerNode(InnerNode node, SortedEntries delta, long low, long high,
+                                     List<Integer> lows, List<Node> nodes) {
+        Integer[] nodeKeys = node.getKeys();
+        Node[] nodeChildren = node.getChildren();
+        int size = getNodeSize(node);
+
+        // the separator left of every child, the first child needs none
+        List<Integer> childLows = new ArrayList<>();
+        List<Node> children = new ArrayList<>();
+
+        int next = 0;
+        while (delta.hasNext() && delta.peekKey() < high) {
+            int branch = node.childIndex(delta.peekKey());
+            for (; next < branch; next++) {
+                childLows.add(next == 0 ? null : nodeKeys[next - 1]);
+                children.add(nodeChildren[next]);
+            }
+            long childLow = branch == 0 ? low : nodeKeys[branch - 1];
+            long childHigh = branch == size ? high : nodeKeys[branch];
+            int first = childLows.size();
+            upsertIntoNode(nodeChildren[branch], delta, childLow, childHigh, childLows, children);
+            // the old separator still bounds the first replacement from below
+            childLows.set(first, branch == 0 ? null : nodeKeys[branch - 1]);
+            next = branch + 1;
+        }
+        for (; next <= size; next++) {
+            childLows.add(next == 0 ? null : nodeKeys[next - 1]);
+            children.add(nodeChildren[next]);
+        }
+
+        int parts = (children.size() + innerCapacity) / (innerCapacity + 1);
+        if (parts > 1) {
+            structureVersion++;
+        }
+        for (int part = 0; part < parts; part++) {
+            int from = (int) ((long) part * children.size() / parts);
+            int to = (int) ((long) (part + 1) * children.size() / parts);
+            Integer[] partKeys = childLows.subList(from + 1, to).toArray(new Integer[0]);
+            Node[] partChildren = children.subList(from, to).toArray(new Node[0]);
+            if (part == 0) {
+                node.setKeys(partKeys);
+                node.setChildren(partChildren);
+                nodes.add(node);
+            } else {
+                TreeEvents.Split event = new TreeEvents.Split();
+                event.begin();
+                nodes.add(newInnerNode(partKeys, partChildren));
+                if (event.shouldCommit()) {
+                    event.level = levelOf(node);
+                    event.leftSize = getNodeSize(nodes.get(nodes.size() - 2));
+                    event.rightSize = partKeys.length;
+                    event.commit();
+                }
+            }
+            lows.add(childLows.get(from));
+        }
+    }
+
     ///// Public API
     ///// These can be left unchanged
 
@@ -442,46 +909,766 @@ public class BPlusTree {
      * Lookup the value stored under the given key.
      * @return The stored value, or {null} if the key does not exist.
      */
+    @Override
     public String lookup(Integer key) {
+        OperationLatencies latencies = this.latencies;
+        if (latencies == null) {
+            return lookupEntry(key);
+        }
+        long start = System.nanoTime();
+        String value = lookupEntry(key);
+        latencies.record(OperationLatencies.Operation.LOOKUP, false, System.nanoTime() - start);
+        return value;
+    }
+
+    private String lookupEntry(Integer key) {
+        if (membershipFilter != null && !membershipFilter.mightContain(key)) {
+            return null;
+        }
+        if (lookupCache != null) {
+            String value = lookupCache.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
         LeafNode leafNode = findLeafNode(key, root);
-        return lookupInLeafNode(key, leafNode);
+        String value = lookupInLeafNode(key, leafNode);
+        if (lookupCache != null && value != null) {
+            lookupCache.put(key, value);
+        }
+        if (membershipFilter != null && value == null) {
+            membershipFilter.recordFalsePositive();
+        }
+        return value;
+    }
+
+    /**
+     * Delete all keys between from and to, both inclusive.
+     * <p>
+     * Subtrees that lie completely inside the range are dropped as a whole;
+     * only the two paths along the range boundaries are visited and
+     * rebalanced, once.
+     * @return The number of deleted keys.
+     */
+    public int deleteRange(Integer from, Integer to) {
+        if (from > to) {
+            return 0;
+        }
+        int before = size();
+        if (root instanceof LeafNode) {
+            deleteRangeFromLeafNode(from, to, (LeafNode) root);
+        } else {
+            deleteRangeFromInnerNode(from, to, (InnerNode) root, Long.MIN_VALUE, Long.MAX_VALUE);
+            // the root may have lost all but one child
+            while (root instanceof InnerNode && getNodeSize(root) == 0) {
+                TreeEvents.RootCollapse event = new TreeEvents.RootCollapse();
+                event.begin();
+                Node oldRoot = root;
+                root = ((InnerNode) root).getChildren()[0];
+                releaseNode(oldRoot);
+                if (event.shouldCommit()) {
+                    event.height = levelOf(root) + 1;
+                    event.commit();
+                }
+            }
+        }
+        if (lookupCache != null) {
+            lookupCache.invalidateRange(from, to);
+        }
+        modCount++;
+        int deleted = before - size();
+        if (deleted > 0) {
+            structureVersion++;
+            sequence++;
+            if (!mutationListeners.isEmpty()) {
+                notifyListeners(Mutation.deleteRange(sequence, from, to));
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Remove all keys from the tree. Does nothing if the tree is empty.
+     */
+    public void clear() {
+        if (size() == 0) {
+            return;
+        }
+        root = newLeafNode(new Integer[0], new String[0]);
+        modCount++;
+        structureVersion++;
+        if (lookupCache != null) {
+            lookupCache.clear();
+        }
+        if (membershipFilter != null) {
+            membershipFilter.clear();
+        }
+        sequence++;
+        if (!mutationListeners.isEmpty()) {
+            notifyListeners(Mutation.clear(sequence));
+        }
+    }
+
+    /**
+     * Insert the entries, which have to come in ascending key order,
+     * replacing the values of keys that already exist. Of several entries
+     * with the same key, the last one wins.
+     * <p>
+     * Unlike repeated inserts, the entries are merge-joined with the leaves
+     * they fall into: every affected leaf is rewritten once and split into as
+     * many leaves as needed, and every affected inner node is rebuilt once on
+     * the way back up. Subtrees without new entries are not visited, so the
+     * cost grows with the number of entries and the leaves they touch rather
+     * than with the size of the tree.
+     * @throws IllegalArgumentException If the keys are not ascending. The
+     * entries before the offending one have been applied.
+     */
+    public void upsertSorted(Iterator<Map.Entry<Integer, String>> entries) {
+        SortedEntries delta = new SortedEntries(entries);
+        if (delta.hasNext()) {
+            List<Integer> lows = new ArrayList<>();
+            List<Node> nodes = new ArrayList<>();
+            upsertIntoNode(root, delta, Long.MIN_VALUE, Long.MAX_VALUE, lows, nodes);
+            // grow the tree by as many levels as the root split into
+            while (nodes.size() > 1) {
+                TreeEvents.RootGrowth event = new TreeEvents.RootGrowth();
+                event.begin();
+                List<Integer> parentLows = new ArrayList<>();
+                List<Node> parents = new ArrayList<>();
+                int parts = (nodes.size() + innerCapacity) / (innerCapacity + 1);
+                for (int part = 0; part < parts; part++) {
+                    int from = part * nodes.size() / parts;
+                    int to = (part + 1) * nodes.size() / parts;
+                    parents.add(newInnerNode(lows.subList(from + 1, to).toArray(new Integer[0]),
+                                             nodes.subList(from, to).toArray(new Node[0])));
+                    parentLows.add(lows.get(from));
+                }
+                lows = parentLows;
+                nodes = parents;
+                if (event.shouldCommit()) {
+                    event.height = levelOf(nodes.get(0)) + 1;
+                    event.commit();
+                }
+            }
+            root = nodes.get(0);
+        }
+        delta.finish();
     }
 
     /**
-     * Insert the key/value pair into the B+ tree.
+     * Insert all entries of the other tree into this one, replacing the
+     * values of keys that exist in both. See {upsertSorted}.
      */
+    public void mergeFrom(BPlusTree other) {
+        if (other != this) {
+            upsertSorted(other.scan(Integer.MIN_VALUE, Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Iterate over the entries with keys between from and to, both
+     * inclusive, in ascending key order.
+     * <p>
+     * The iterator fails with a {ConcurrentModificationException} if the
+     * tree is modified while it is in use.
+     */
+    public Iterator<Map.Entry<Integer, String>> scan(Integer from, Integer to) {
+        return new EntryIterator(from, to);
+    }
+
+    /**
+     * Rebuild the tree with all nodes filled to the given fill factor, in
+     * one go. See {TreeCompactor} for compaction in bounded time slices.
+     */
+    public void compact(double fillFactor) {
+        TreeCompactor compactor = new TreeCompactor(this, fillFactor);
+        while (!compactor.step(Long.MAX_VALUE)) {
+            // no time limit, a single step finishes
+        }
+    }
+
+    /**
+     * Write all entries to a binary snapshot file, see {Snapshot} for the
+     * format. The value dictionary and the membership filter settings are
+     * saved with the entries; other options such as the lookup cache are
+     * not.
+     */
+    public void writeSnapshot(Path path) throws IOException {
+        Snapshot.write(this, path);
+    }
+
+    /**
+     * Load a tree from a snapshot file, with all nodes filled completely.
+     */
+    public static BPlusTree readSnapshot(Path path) throws IOException {
+        return readSnapshot(path, 1.0);
+    }
+
+    /**
+     * Load a tree from a snapshot file, with nodes filled to the given fill
+     * factor to leave room for later inserts.
+     */
+    public static BPlusTree readSnapshot(Path path, double fillFactor) throws IOException {
+        return Snapshot.read(path, fillFactor);
+    }
+
+    /**
+     * A loader that builds a tree with the capacities and leaf options of
+     * this tree bottom-up from sorted entries.
+     */
+    BulkLoader bulkLoader(double fillFactor) {
+        return new BulkLoader(leafCapacity, innerCapacity, fillFactor,
+                              this::newLeafNode, this::newInnerNode);
+    }
+
+    /**
+     * Swap in a root built from the entries of this tree, e.g. by a bulk
+     * loader. The old nodes are left alone, as readers may still use them.
+     * An enabled membership filter is rebuilt from the new leaves, sized for
+     * the keys they hold.
+     */
+    void replaceRoot(Node root) {
+        this.root = root;
+        modCount++;
+        structureVersion++;
+        if (membershipFilter != null) {
+            rebuildMembershipFilter(size());
+        }
+    }
+
+    /**
+     * Number of modifications so far, to detect changes between two calls.
+     */
+    int modCount() {
+        return modCount;
+    }
+
+    /**
+     * Number of structural modifications so far, i.e. of changes to the
+     * node layout rather than only to the entries of existing nodes.
+     */
+    long structureVersion() {
+        return structureVersion;
+    }
+
+    /**
+     * Number of keys stored in the tree.
+     */
+    public int size() {
+        if (root instanceof InnerNode) {
+            return ((InnerNode) root).getSubtreeSize();
+        }
+        return root == null ? 0 : ((LeafNode) root).size();
+    }
+
+    /**
+     * Estimated memory footprint of the nodes, see {MemoryStats}.
+     * <p>
+     * The node layout is only measured again after a structural
+     * modification such as a split or a merge. In between, the stats are
+     * derived from the last measurement and the current number of keys in
+     * constant time. With key compression, every change re-encodes a leaf,
+     * so the layout is measured on every call.
+     */
+    public MemoryStats memoryStats() {
+        if (memoryStructure == null || memoryStructureVersion != structureVersion
+                || compressedKeys) {
+            memoryStructure = MemoryStats.Structure.measure(root);
+            memoryStructureVersion = structureVersion;
+        }
+        return new MemoryStats(memoryStructure, size(), valueDictionary);
+    }
+
+    /**
+     * Number of keys in the tree that are smaller than the given key.
+     * Runs in O(height) using the subtree counts of the inner nodes.
+     */
+    public int rank(Integer key) {
+        return countBelow(key, false);
+    }
+
+    /**
+     * The k-th smallest key in the tree, starting at 0.
+     * @return The key, or {null} if k is out of range.
+     */
+    public Integer select(int k) {
+        if (k < 0 || k >= size()) {
+            return null;
+        }
+        Node node = root;
+        while (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            Node[] children = innerNode.getChildren();
+            int branch = 0;
+            while (k >= innerNode.getCount(branch)) {
+                k -= innerNode.getCount(branch);
+                branch++;
+            }
+            node = children[branch];
+        }
+        return node.getKeys()[k];
+    }
+
+    /**
+     * Number of keys in the tree between from and to, both inclusive.
+     * Runs in O(height) using the subtree counts of the inner nodes.
+     */
+    public int count(Integer from, Integer to) {
+        if (from > to) {
+            return 0;
+        }
+        return countBelow(to, true) - countBelow(from, false);
+    }
+
+    /**
+     * Number of keys smaller than (or, if inclusive, equal to) the key.
+     */
+    private int countBelow(Integer key, boolean inclusive) {
+        int count = 0;
+        Node node = root;
+        while (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            int branch = innerNode.childIndex(key);
+            if (branch == -1) {
+                return count;
+            }
+            // all children left of the branch only hold smaller keys
+            for (int i = 0; i < branch; i++) {
+                count += innerNode.getCount(i);
+            }
+            node = innerNode.getChildren()[branch];
+        }
+        if (node != null) {
+            for (Integer leafKey : node.getKeys()) {
+                if (leafKey != null && (leafKey < key || inclusive && leafKey.equals(key))) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Lookup the values stored under the given keys.
+     * <p>
+     * The keys are walked down the tree in groups of {BATCH_GROUP_SIZE}, so
+     * that the node fetches of one group overlap. This is faster than calling
+     * lookup for every key once the tree no longer fits into the cache.
+     * @return The stored values in the order of the keys, with {null} for
+     * keys that do not exist.
+     */
+    public String[] lookupBatch(Integer[] keys) {
+        String[] values = new String[keys.length];
+        Node[] cursors = new Node[BATCH_GROUP_SIZE];
+        for (int from = 0; from < keys.length; from += BATCH_GROUP_SIZE) {
+            int to = Math.min(from + BATCH_GROUP_SIZE, keys.length);
+            findLeafNodes(keys, from, to, cursors);
+            for (int i = from; i < to; i++) {
+                values[i] = lookupInLeafNode(keys[i], (LeafNode) cursors[i - from]);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Insert the key/value pair into the B+ tree, replacing the value if the
+     * key already exists.
+     */
+    @Override
     public void insert(int key, String value) {
+        OperationLatencies latencies = this.latencies;
+        if (latencies == null) {
+            insertEntry(key, value);
+            return;
+        }
+        long version = structureVersion;
+        long start = System.nanoTime();
+        insertEntry(key, value);
+        latencies.record(OperationLatencies.Operation.INSERT, structureVersion != version,
+                         System.nanoTime() - start);
+    }
+
+    private void insertEntry(int key, String value) {
         Deque<InnerNode> parents = new LinkedList<>();
         LeafNode leafNode = findLeafNode(key, root, parents);
-        insertIntoLeafNode(key, value, leafNode, parents);
+        int pos = leafNode == null ? -1 : leafNode.indexOf(key);
+        if (pos != -1) {
+            leafNode.setValue(pos, value);
+        } else {
+            List<InnerNode> path = new ArrayList<>(parents);
+            insertIntoLeafNode(key, value, leafNode, parents);
+            recount(path);
+        }
+        modCount++;
+        if (lookupCache != null) {
+            lookupCache.invalidate(key);
+        }
+        if (membershipFilter != null && pos == -1) {
+            membershipFilter.add(key);
+            if (membershipFilter.isOverloaded()) {
+                rebuildMembershipFilter(2 * membershipFilter.size());
+            }
+        }
+        sequence++;
+        if (!mutationListeners.isEmpty()) {
+            notifyListeners(Mutation.insert(sequence, key, value));
+        }
     }
 
     /**
      * Delete the key/value pair from the B+ tree.
      * @return The original value, or {null} if the key does not exist.
      */
+    @Override
     public String delete(Integer key) {
+        OperationLatencies latencies = this.latencies;
+        if (latencies == null) {
+            return deleteEntry(key);
+        }
+        long version = structureVersion;
+        long start = System.nanoTime();
+        String value = deleteEntry(key);
+        latencies.record(OperationLatencies.Operation.DELETE, structureVersion != version,
+                         System.nanoTime() - start);
+        return value;
+    }
+
+    private String deleteEntry(Integer key) {
         Deque<InnerNode> parents = new LinkedList<>();
         LeafNode leafNode = findLeafNode(key, root, parents);
-        return deleteFromLeafNode(key, leafNode, parents);
+        List<InnerNode> path = new ArrayList<>(parents);
+        String value = deleteFromLeafNode(key, leafNode, parents);
+        recount(path);
+        modCount++;
+        if (lookupCache != null) {
+            lookupCache.invalidate(key);
+        }
+        if (membershipFilter != null && value != null) {
+            membershipFilter.remove(key);
+        }
+        if (value != null) {
+            sequence++;
+            if (!mutationListeners.isEmpty()) {
+                notifyListeners(Mutation.delete(sequence, key));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Keep a one byte fingerprint per key in every leaf.
+     * <p>
+     * Point lookups then only compare the full keys whose fingerprint
+     * matches, so most misses are resolved on the fingerprint array alone.
+     */
+    public void enableFingerprints() {
+        fingerprints = true;
+        forEachLeaf(root, LeafNode::enableFingerprints);
+        memoryStructure = null;
+    }
+
+    public void disableFingerprints() {
+        fingerprints = false;
+        forEachLeaf(root, LeafNode::disableFingerprints);
+        memoryStructure = null;
+    }
+
+    /**
+     * Route lookups through a linear model of the separator keys in every
+     * inner node instead of searching them, see {LinearModel}.
+     * <p>
+     * Models are fitted when an inner node is first searched after its keys
+     * changed, e.g. after a bulk load or a split. Nodes whose keys a line
+     * does not predict within a few positions keep searching. This pays off
+     * for evenly spread keys such as sequential IDs; see {RoutingBenchmark}.
+     */
+    public void enableLearnedRouting() {
+        learnedRouting = true;
+        forEachInnerNode(root, InnerNode::enableLearnedRouting);
+        memoryStructure = null;
+    }
+
+    public void disableLearnedRouting() {
+        learnedRouting = false;
+        forEachInnerNode(root, InnerNode::disableLearnedRouting);
+        memoryStructure = null;
+    }
+
+    /**
+     * Store the keys of every leaf frame-of-reference encoded, i.e. as the
+     * smallest key plus bit-packed distances to it.
+     * <p>
+     * For dense integer keys this fits several times more keys into a cache
+     * line, at the price of re-encoding a leaf on every change.
+     */
+    public void enableKeyCompression() {
+        compressedKeys = true;
+        forEachLeaf(root, LeafNode::compressKeys);
+    }
+
+    public void disableKeyCompression() {
+        compressedKeys = false;
+        forEachLeaf(root, LeafNode::decompressKeys);
+        memoryStructure = null;
+    }
+
+    /**
+     * Store the values of every leaf as codes of a tree-wide dictionary.
+     * <p>
+     * Each distinct value is then kept only once, which saves most of the
+     * heap for values from a small vocabulary. lookup still returns the
+     * string. The dictionary only grows, so this does not suit unique values.
+     */
+    public void enableValueDictionary() {
+        if (valueDictionary == null) {
+            enableValueDictionary(new ValueDictionary());
+        }
+    }
+
+    /**
+     * Encode the values of every leaf with the given dictionary, e.g. one
+     * restored from a snapshot. Does nothing if values are already encoded.
+     */
+    void enableValueDictionary(ValueDictionary dictionary) {
+        if (valueDictionary == null) {
+            forEachLeaf(root, leaf -> leaf.encodeValues(dictionary));
+            valueDictionary = dictionary;
+            memoryStructure = null;
+        }
+    }
+
+    public void disableValueDictionary() {
+        valueDictionary = null;
+        forEachLeaf(root, LeafNode::decodeValues);
+        memoryStructure = null;
+    }
+
+    /**
+     * @return The value dictionary, or {null} if values are not dictionary
+     * encoded.
+     */
+    public ValueDictionary getValueDictionary() {
+        return valueDictionary;
+    }
+
+    /**
+     * Maintain a membership filter over all keys of the tree.
+     * <p>
+     * Lookups for keys that the filter rejects return {null} without
+     * descending the tree. The filter is sized for expectedKeys keys and is
+     * rebuilt with twice the size when the tree outgrows it.
+     */
+    public void enableMembershipFilter(int expectedKeys, double falsePositiveRate) {
+        this.filterFalsePositiveRate = falsePositiveRate;
+        rebuildMembershipFilter(expectedKeys);
+    }
+
+    public void disableMembershipFilter() {
+        membershipFilter = null;
+    }
+
+    /**
+     * @return The membership filter, e.g. to read its false positive rate, or
+     * {null} if no filter is enabled.
+     */
+    public MembershipFilter getMembershipFilter() {
+        return membershipFilter;
+    }
+
+    /**
+     * Target false positive rate of the membership filter, or 0 if no filter
+     * is enabled.
+     */
+    double filterFalsePositiveRate() {
+        return membershipFilter == null ? 0 : filterFalsePositiveRate;
+    }
+
+    private void rebuildMembershipFilter(int expectedKeys) {
+        MembershipFilter filter = new MembershipFilter(Math.max(1, expectedKeys),
+                                                       filterFalsePositiveRate);
+        forEachLeaf(root, leaf -> {
+            for (Integer key : leaf.getKeys()) {
+                if (key != null) {
+                    filter.add(key);
+                }
+            }
+        });
+        membershipFilter = filter;
+    }
+
+    /**
+     * Recycle the nodes that merges and range deletes throw away for later
+     * splits, keeping up to maxNodesPerThread leaves and inner nodes per
+     * thread.
+     */
+    public void enableNodePool(int maxNodesPerThread) {
+        nodePool = new NodePool(leafCapacity, innerCapacity, maxNodesPerThread);
+    }
+
+    public void disableNodePool() {
+        nodePool = null;
+    }
+
+    /**
+     * @return The node pool, e.g. to read how many nodes were reused, or
+     * {null} if no pool is enabled.
+     */
+    public NodePool getNodePool() {
+        return nodePool;
+    }
+
+    /**
+     * Put a cache for the results of lookup in front of the tree.
+     * <p>
+     * The cache holds at most maxSize keys and is kept consistent by insert
+     * and delete. It pays off for skewed access patterns, where a few hot keys
+     * make up most of the lookups.
+     */
+    public void enableLookupCache(int maxSize) {
+        lookupCache = new LookupCache(maxSize);
+    }
+
+    public void disableLookupCache() {
+        lookupCache = null;
+    }
+
+    /**
+     * @return The lookup cache, e.g. to read its hit rate, or {null} if no
+     * cache is enabled.
+     */
+    public LookupCache getLookupCache() {
+        return lookupCache;
+    }
+
+    /**
+     * Record the latency of every lookup, insert and delete in histograms,
+     * split by whether the operation modified the structure of the tree.
+     */
+    public void enableLatencyHistograms() {
+        enableLatencyHistograms(new OperationLatencies());
+    }
+
+    /**
+     * Record latencies into the given histograms, e.g. to aggregate several
+     * trees in one set of histograms.
+     */
+    public void enableLatencyHistograms(OperationLatencies latencies) {
+        this.latencies = latencies;
+    }
+
+    public void disableLatencyHistograms() {
+        latencies = null;
+    }
+
+    /**
+     * @return The latency histograms, or {null} if they are not enabled.
+     */
+    public OperationLatencies getLatencyHistograms() {
+        return latencies;
+    }
+
+    /**
+     * Report every insert, upsert, delete, range delete and clear that
+     * changes the tree to the listener, e.g. a {MutationLogWriter} that feeds
+     * replicas.
+     */
+    public void addMutationListener(MutationListener listener) {
+        mutationListeners.add(listener);
+    }
+
+    public void removeMutationListener(MutationListener listener) {
+        mutationListeners.remove(listener);
+    }
+
+    /**
+     * Sequence number of the last mutation, 0 if the tree was never
+     * modified. A replica that starts from a copy of the tree continues
+     * after this number.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    private void notifyListeners(Mutation mutation) {
+        for (MutationListener listener : mutationListeners) {
+            listener.onMutation(mutation);
+        }
     }
 
     ///// Leave these methods unchanged
 
-    private int capacity = 0;
+    /**
+     * Number of keys that lookupBatch descends in lock step.
+     */
+    public static final int BATCH_GROUP_SIZE = 16;
+
+    private int leafCapacity = 0;
+
+    private int innerCapacity = 0;
 
     private Node root;
 
+    private LookupCache lookupCache;
+
+    private boolean fingerprints = false;
+
+    private boolean compressedKeys = false;
+
+    private boolean learnedRouting = false;
+
+    private ValueDictionary valueDictionary;
+
+    private MembershipFilter membershipFilter;
+
+    private double filterFalsePositiveRate;
+
+    private NodePool nodePool;
+
+    private int modCount = 0;
+
+    // number of structural modifications: splits, steals, merges and rebuilds
+    private long structureVersion = 0;
+
+    private OperationLatencies latencies;
+
+    // node layout measured for memoryStats, valid while the structure
+    // version is unchanged
+    private MemoryStats.Structure memoryStructure;
+
+    private long memoryStructureVersion;
+
+    private long sequence = 0;
+
+    private final List<MutationListener> mutationListeners = new ArrayList<>();
+
     public BPlusTree(int capacity) {
-        this(new LeafNode(capacity), capacity);
+        this(capacity, capacity);
     }
 
     public BPlusTree(Node root, int capacity) {
-        assert capacity % 2 == 0;
-        this.capacity = capacity;
+        this(root, capacity, capacity);
+    }
+
+    public BPlusTree(int leafCapacity, int innerCapacity) {
+        this(new LeafNode(leafCapacity), leafCapacity, innerCapacity);
+    }
+
+    public BPlusTree(Node root, int leafCapacity, int innerCapacity) {
+        assert leafCapacity % 2 == 0;
+        assert innerCapacity % 2 == 0;
+        this.leafCapacity = leafCapacity;
+        this.innerCapacity = innerCapacity;
         this.root = root;
     }
 
+    public int getLeafCapacity() {
+        return leafCapacity;
+    }
+
+    public int getInnerCapacity() {
+        return innerCapacity;
+    }
+
     public Node rootNode() {
         return root;
     }
@@ -494,4 +1681,193 @@ public class BPlusTree {
         return findLeafNode(key, node, null);
     }
 
+    /**
+     * The entries of an upsert, read one ahead to check their order and to
+     * collapse runs of equal keys to their last entry. The stream ends early
+     * at the first key that is smaller than its predecessor; finish reports
+     * it after the entries before it are in the tree.
+     */
+    private class SortedEntries {
+
+        private final Iterator<Map.Entry<Integer, String>> entries;
+
+        private Map.Entry<Integer, String> next;
+
+        // entry read after next, not handed out yet
+        private Map.Entry<Integer, String> following;
+
+        private Integer lastKey;
+
+        private Integer unorderedKey;
+
+        private int appliedCount = 0;
+
+        // applied entries, kept for the mutation listeners only
+        private final List<Map.Entry<Integer, String>> applied = new ArrayList<>();
+
+        SortedEntries(Iterator<Map.Entry<Integer, String>> entries) {
+            this.entries = entries;
+        }
+
+        boolean hasNext() {
+            if (next == null && unorderedKey == null) {
+                Map.Entry<Integer, String> entry = following != null ? following : read();
+                following = null;
+                if (entry != null && lastKey != null && entry.getKey() < lastKey) {
+                    unorderedKey = entry.getKey();
+                } else if (entry != null) {
+                    // of several entries with the same key, the last one wins
+                    following = read();
+                    while (following != null && following.getKey().equals(entry.getKey())) {
+                        entry = following;
+                        following = read();
+                    }
+                    next = entry;
+                    lastKey = entry.getKey();
+                }
+            }
+            return next != null;
+        }
+
+        private Map.Entry<Integer, String> read() {
+            return entries.hasNext() ? entries.next() : null;
+        }
+
+        int peekKey() {
+            return next.getKey();
+        }
+
+        Map.Entry<Integer, String> next() {
+            Map.Entry<Integer, String> entry = next;
+            next = null;
+            return entry;
+        }
+
+        /**
+         * Called for every entry merged into a leaf.
+         */
+        void applied(int key, String value, boolean replaced) {
+            if (lookupCache != null) {
+                lookupCache.invalidate(key);
+            }
+            if (membershipFilter != null && !replaced) {
+                membershipFilter.add(key);
+            }
+            appliedCount++;
+            if (!mutationListeners.isEmpty()) {
+                applied.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+            }
+        }
+
+        void finish() {
+            if (appliedCount > 0) {
+                modCount++;
+            }
+            if (membershipFilter != null && membershipFilter.isOverloaded()) {
+                rebuildMembershipFilter(2 * membershipFilter.size());
+            }
+            if (mutationListeners.isEmpty()) {
+                sequence += appliedCount;
+            }
+            for (Map.Entry<Integer, String> entry : applied) {
+                sequence++;
+                notifyListeners(Mutation.upsert(sequence, entry.getKey(), entry.getValue()));
+            }
+            if (unorderedKey != null) {
+                throw new IllegalArgumentException("key " + unorderedKey + " follows key "
+                                                   + lastKey + ", keys have to be ascending");
+            }
+        }
+
+    }
+
+    /**
+     * In-order iterator over a key range. The leaves are not linked, so it
+     * keeps the inner nodes above the current leaf on a stack, together with
+     * the index of the next child to visit in each of them.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<Integer, String>> {
+
+        private final Deque<InnerNode> parents = new ArrayDeque<>();
+
+        private final Deque<Integer> nextChild = new ArrayDeque<>();
+
+        private final int to;
+
+        private final int expectedModCount = modCount;
+
+        private LeafNode leaf;
+
+        private Integer[] keys;
+
+        private int pos;
+
+        EntryIterator(int from, int to) {
+            this.to = to;
+            Node node = root;
+            while (node instanceof InnerNode) {
+                InnerNode innerNode = (InnerNode) node;
+                int branch = Math.max(0, innerNode.childIndex(from));
+                parents.push(innerNode);
+                nextChild.push(branch + 1);
+                node = innerNode.getChildren()[branch];
+            }
+            enterLeaf((LeafNode) node);
+            while (pos < keys.length && keys[pos] != null && keys[pos] < from) {
+                pos++;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            while (leaf != null && (pos >= keys.length || keys[pos] == null)) {
+                nextLeaf();
+            }
+            return leaf != null && keys[pos] <= to;
+        }
+
+        @Override
+        public Map.Entry<Integer, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<Integer, String> entry =
+                    new AbstractMap.SimpleImmutableEntry<>(keys[pos], leaf.getValue(pos));
+            pos++;
+            return entry;
+        }
+
+        private void enterLeaf(LeafNode node) {
+            leaf = node;
+            keys = node.getKeys();
+            pos = 0;
+        }
+
+        private void nextLeaf() {
+            // climb up to the first ancestor with a child left to visit
+            while (!parents.isEmpty()) {
+                InnerNode innerNode = parents.peek();
+                int branch = nextChild.pop();
+                if (branch <= getNodeSize(innerNode)) {
+                    nextChild.push(branch + 1);
+                    Node node = innerNode.getChildren()[branch];
+                    // and down to the leftmost leaf below that child
+                    while (node instanceof InnerNode) {
+                        parents.push((InnerNode) node);
+                        nextChild.push(1);
+                        node = ((InnerNode) node).getChildren()[0];
+                    }
+                    enterLeaf((LeafNode) node);
+                    return;
+                }
+                parents.pop();
+            }
+            leaf = null;
+        }
+
+    }
+
 }
@@ -1,13 +1,33 @@
 package de.tuberlin.dima.dbt.exercises.bplustree;
 
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.stream.Collectors;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 
+/**
+ * Prints a tree as indented text, as a GraphViz DOT graph or as JSON.
+ * <p>
+ * The output is streamed to an {Appendable} node by node, so printing only
+ * needs memory proportional to the height of the tree. Large trees can be cut
+ * down with a maximum depth and a maximum number of children printed per
+ * inner node; elided parts are marked in the output.
+ */
 public class BPlusTreePrinter {
 
+    public enum Format {
+        TEXT, DOT, JSON
+    }
+
     private Node root;
 
+    private Format format = Format.TEXT;
+
+    private int maxDepth = Integer.MAX_VALUE;
+
+    private int maxFanOut = Integer.MAX_VALUE;
+
+    // next node id in DOT output
+    private int nextId;
+
     public BPlusTreePrinter(BPlusTree tree) {
         root = tree.rootNode();
     }
@@ -16,51 +36,253 @@ public class BPlusTreePrinter {
         root = node;
     }
 
+    public BPlusTreePrinter setFormat(Format format) {
+        this.format = format;
+        return this;
+    }
+
+    /**
+     * Only print nodes up to the given depth, the root has depth 0.
+     */
+    public BPlusTreePrinter setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * Only print the first maxFanOut children of every inner node.
+     */
+    public BPlusTreePrinter setMaxFanOut(int maxFanOut) {
+        this.maxFanOut = maxFanOut;
+        return this;
+    }
+
     public String toString() {
-        StringBuffer sb = new StringBuffer();
-        toString(sb, root, 0);
+        StringBuilder sb = new StringBuilder();
+        try {
+            print(sb);
+        } catch (IOException e) {
+            // a StringBuilder does not throw
+            throw new UncheckedIOException(e);
+        }
         return sb.toString().trim();
     }
 
-    private void toString(StringBuffer sb, Node node, int indent) {
-        indent(sb, indent);
+    /**
+     * Stream the tree to the given output in the configured format.
+     */
+    public void print(Appendable out) throws IOException {
+        switch (format) {
+            case DOT:
+                nextId = 0;
+                out.append("digraph BPlusTree {\n");
+                out.append("  node [shape=record];\n");
+                printDot(out, root, 0);
+                out.append("}\n");
+                break;
+            case JSON:
+                printJson(out, root, 0);
+                out.append('\n');
+                break;
+            default:
+                printText(out, root, 0);
+        }
+    }
+
+    ///// Text
+
+    private void printText(Appendable out, Node node, int depth) throws IOException {
+        indent(out, 2 * depth);
         if (node instanceof LeafNode) {
-            toString(sb, (LeafNode) node);
-        } else {
-            toString(sb, (InnerNode) node, indent);
+            LeafNode leaf = (LeafNode) node;
+            out.append('[');
+            join(out, leaf.getKeys());
+            out.append("] => [");
+            join(out, leaf.getValues());
+            out.append("]\n");
+            return;
+        }
+        InnerNode innerNode = (InnerNode) node;
+        out.append('[');
+        join(out, innerNode.getKeys());
+        out.append("] =>");
+        if (depth >= maxDepth) {
+            out.append(" ...\n");
+            return;
+        }
+        out.append('\n');
+        int printed = 0;
+        int children = 0;
+        for (Node child : innerNode.getChildren()) {
+            if (child == null) {
+                continue;
+            }
+            children++;
+            if (printed < maxFanOut) {
+                printText(out, child, depth + 1);
+                printed++;
+            }
+        }
+        if (printed < children) {
+            indent(out, 2 * depth + 2);
+            out.append("... (").append(String.valueOf(children - printed))
+               .append(" more)\n");
+        }
+    }
+
+    private void join(Appendable out, Object[] array) throws IOException {
+        for (int i = 0; i < array.length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            if (array[i] != null) {
+                out.append(String.valueOf(array[i]));
+            }
         }
     }
 
-    private String join(Object[] array) {
-        return Arrays.stream(array)
-                     .map(x -> x == null ? "" : String.valueOf(x))
-                     .collect(Collectors.joining(","));
+    private void indent(Appendable out, int indent) throws IOException {
+        for (int i = 0; i < indent; i++) {
+            out.append(' ');
+        }
     }
 
-    private void toString(StringBuffer sb, InnerNode node, int indent) {
-        String keyList = join(node.getKeys());
-        sb.append("[");
-        sb.append(keyList);
-        sb.append("] =>\n");
-        for (Node child : node.getChildren()) {
-            if (child != null) {
-                toString(sb, child, indent + 2);
+    ///// DOT
+
+    /**
+     * @return The id of the printed node.
+     */
+    private int printDot(Appendable out, Node node, int depth) throws IOException {
+        int id = nextId++;
+        out.append("  n").append(String.valueOf(id)).append(" [label=\"");
+        if (node instanceof LeafNode) {
+            LeafNode leaf = (LeafNode) node;
+            out.append('{');
+            joinDot(out, leaf.getKeys());
+            out.append('|');
+            joinDot(out, leaf.getValues());
+            out.append("}\"];\n");
+            return id;
+        }
+        InnerNode innerNode = (InnerNode) node;
+        joinDot(out, innerNode.getKeys());
+        out.append("\"];\n");
+        int printed = 0;
+        int children = 0;
+        for (Node child : innerNode.getChildren()) {
+            if (child == null) {
+                continue;
+            }
+            children++;
+            if (depth < maxDepth && printed < maxFanOut) {
+                int childId = printDot(out, child, depth + 1);
+                out.append("  n").append(String.valueOf(id)).append(" -> n")
+                   .append(String.valueOf(childId)).append(";\n");
+                printed++;
             }
         }
+        if (printed < children) {
+            int elidedId = nextId++;
+            out.append("  n").append(String.valueOf(elidedId))
+               .append(" [shape=plaintext, label=\"")
+               .append(String.valueOf(children - printed)).append(" more\"];\n");
+            out.append("  n").append(String.valueOf(id)).append(" -> n")
+               .append(String.valueOf(elidedId)).append(" [style=dashed];\n");
+        }
+        return id;
     }
 
-    private void toString(StringBuffer sb, LeafNode node) {
-        String keyList = join(node.getKeys());
-        String valueList = join(node.getValues());
-        sb.append("[");
-        sb.append(keyList);
-        sb.append("] => [");
-        sb.append(valueList);
-        sb.append("]\n");
+    private void joinDot(Appendable out, Object[] array) throws IOException {
+        boolean first = true;
+        for (Object element : array) {
+            if (element == null) {
+                continue;
+            }
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            String s = String.valueOf(element);
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if ("\"\\{}|<>".indexOf(c) >= 0) {
+                    out.append('\\');
+                }
+                out.append(c);
+            }
+        }
     }
 
-    private void indent(StringBuffer sb, int indent) {
-        sb.append(String.join("", Collections.nCopies(indent, " ")));
+    ///// JSON
+
+    private void printJson(Appendable out, Node node, int depth) throws IOException {
+        out.append("{\"keys\":[");
+        boolean first = true;
+        for (Integer key : node.getKeys()) {
+            if (key != null) {
+                out.append(first ? "" : ",").append(String.valueOf(key));
+                first = false;
+            }
+        }
+        out.append(']');
+        if (node instanceof LeafNode) {
+            LeafNode leaf = (LeafNode) node;
+            out.append(",\"values\":[");
+            String[] values = leaf.getValues();
+            for (int i = 0; i < leaf.size(); i++) {
+                out.append(i == 0 ? "" : ",");
+                appendJsonString(out, values[i]);
+            }
+            out.append("]}");
+            return;
+        }
+        InnerNode innerNode = (InnerNode) node;
+        int printed = 0;
+        int children = 0;
+        if (depth < maxDepth) {
+            out.append(",\"children\":[");
+            for (Node child : innerNode.getChildren()) {
+                if (child == null) {
+                    continue;
+                }
+                children++;
+                if (printed < maxFanOut) {
+                    out.append(printed == 0 ? "" : ",");
+                    printJson(out, child, depth + 1);
+                    printed++;
+                }
+            }
+            out.append(']');
+        } else {
+            for (Node child : innerNode.getChildren()) {
+                if (child != null) {
+                    children++;
+                }
+            }
+        }
+        if (printed < children) {
+            out.append(",\"elided\":").append(String.valueOf(children - printed));
+        }
+        out.append('}');
+    }
+
+    private void appendJsonString(Appendable out, String s) throws IOException {
+        if (s == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
     }
 
 }
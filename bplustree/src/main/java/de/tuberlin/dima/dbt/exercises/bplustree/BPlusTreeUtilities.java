@@ -63,6 +63,15 @@ public class BPlusTreeUtilities {
         return newTree(newLeaf(keys(), values(), capacity), capacity);
     }
 
+    /**
+     * Helper method to construct an empty BPlusTree instance with separate
+     * leaf and inner node capacities.
+     */
+    public static BPlusTree newEmptyTree(int leafCapacity, int innerCapacity) {
+        return newTree(newLeaf(keys(), values(), leafCapacity), leafCapacity,
+                       innerCapacity);
+    }
+
     /**
      * Helper method to construct a BPlusTree instance.
      *
@@ -83,6 +92,17 @@ public class BPlusTreeUtilities {
         return new BPlusTree(root, capacity);
     }
 
+    /**
+     * Helper method to construct a BPlusTree instance with separate leaf and
+     * inner node capacities.
+     *
+     * Leaves store leafCapacity keys, inner nodes store innerCapacity keys.
+     */
+    public static BPlusTree newTree(Node root, int leafCapacity,
+                                    int innerCapacity) {
+        return new BPlusTree(root, leafCapacity, innerCapacity);
+    }
+
     /**
      * Helper method to construct a leaf.
      *
@@ -0,0 +1,241 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Checks the structural invariants of a B+ tree on its own, without an
+ * expected tree to compare against:
+ * <p>
+ * - keys are stored without gaps and are strictly increasing, since the
+ *   tree stores every key at most once,
+ * - every key lies within the bounds given by the separators above it,
+ * - nodes other than the root are filled to at least half their capacity,
+ * and the root of a tree with inner nodes holds at least one key,
+ * - nodes have the capacity the tree uses for their level,
+ * - inner nodes have one child more than keys,
+ * - all leaves are at the same depth,
+ * - the subtree counts of inner nodes match their children.
+ * <p>
+ * The leaves of this tree are not linked, so there are no sibling links to
+ * check. Large subtrees are checked in parallel on a {ForkJoinPool}. The
+ * violation that is reported is the first one in key order, no matter which
+ * thread found it.
+ */
+public class BPlusTreeValidator {
+
+    /**
+     * Subtrees with more keys than this are split into parallel tasks.
+     */
+    private static final int FORK_THRESHOLD = 1 << 14;
+
+    private final BPlusTree tree;
+
+    private final ForkJoinPool pool;
+
+    public BPlusTreeValidator(BPlusTree tree) {
+        this(tree, ForkJoinPool.commonPool());
+    }
+
+    public BPlusTreeValidator(BPlusTree tree, ForkJoinPool pool) {
+        this.tree = tree;
+        this.pool = pool;
+    }
+
+    /**
+     * @return The first violation of a tree invariant, or {null} if the tree
+     * is valid.
+     */
+    public Violation validate() {
+        Node root = tree.rootNode();
+        if (root == null) {
+            return new Violation(new int[0], "tree has no root");
+        }
+        return pool.invoke(new Check(root, new int[0], Long.MIN_VALUE,
+                                     Long.MAX_VALUE)).violation;
+    }
+
+    /**
+     * A broken invariant, together with the path of child indices that leads
+     * from the root to the offending node.
+     */
+    public static class Violation {
+
+        private final int[] path;
+
+        private final String message;
+
+        Violation(int[] path, String message) {
+            this.path = path;
+            this.message = message;
+        }
+
+        public int[] getPath() {
+            return path;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public String toString() {
+            return "node " + Arrays.toString(path) + ": " + message;
+        }
+
+    }
+
+    private static class Result {
+
+        // number of levels below the checked node, 0 for a leaf
+        final int height;
+
+        // number of keys in the checked subtree
+        final int size;
+
+        final Violation violation;
+
+        Result(int height, int size, Violation violation) {
+            this.height = height;
+            this.size = size;
+            this.violation = violation;
+        }
+
+    }
+
+    private class Check extends RecursiveTask<Result> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Node node;
+
+        private final int[] path;
+
+        // all keys of the node have to lie within [low, high]
+        private final long low;
+
+        private final long high;
+
+        Check(Node node, int[] path, long low, long high) {
+            this.node = node;
+            this.path = path;
+            this.low = low;
+            this.high = high;
+        }
+
+        @Override
+        protected Result compute() {
+            Integer[] keys = node.getKeys();
+            int size = 0;
+            while (size < keys.length && keys[size] != null) {
+                size++;
+            }
+            String error = checkKeys(keys, size);
+            if (error == null) {
+                error = checkFill(size);
+            }
+            if (error != null) {
+                return new Result(0, 0, new Violation(path, error));
+            }
+            if (node instanceof LeafNode) {
+                return new Result(0, size, null);
+            }
+            return checkChildren((InnerNode) node, keys, size);
+        }
+
+        private String checkKeys(Integer[] keys, int size) {
+            for (int i = size; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    return "key " + keys[i] + " at position " + i + " follows an empty slot";
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                if (i > 0 && keys[i] <= keys[i - 1]) {
+                    return "keys " + keys[i - 1] + " and " + keys[i] + " are not strictly increasing";
+                }
+                if (keys[i] < low || keys[i] > high) {
+                    return "key " + keys[i] + " is outside of the separator bounds ["
+                            + bound(low) + ", " + bound(high) + "]";
+                }
+            }
+            return null;
+        }
+
+        private String checkFill(int size) {
+            boolean isLeaf = node instanceof LeafNode;
+            int capacity = isLeaf ? tree.getLeafCapacity() : tree.getInnerCapacity();
+            if (node.getCapacity() != capacity) {
+                return "capacity is " + node.getCapacity() + " instead of " + capacity;
+            }
+            boolean isRoot = path.length == 0;
+            if (isRoot) {
+                return !isLeaf && size == 0 ? "inner root has no keys" : null;
+            }
+            if (size < capacity / 2) {
+                return "holds " + size + " keys, at least " + capacity / 2 + " are required";
+            }
+            return null;
+        }
+
+        private Result checkChildren(InnerNode innerNode, Integer[] keys, int size) {
+            Node[] children = innerNode.getChildren();
+            for (int i = 0; i < children.length; i++) {
+                if ((i <= size) != (children[i] != null)) {
+                    return new Result(0, 0, new Violation(path, "has " + size + " keys, but child "
+                            + i + " is " + (children[i] == null ? "missing" : "present")));
+                }
+            }
+
+            List<Check> forked = new ArrayList<>();
+            Result[] results = new Result[size + 1];
+            for (int i = 0; i <= size; i++) {
+                long childLow = i == 0 ? low : keys[i - 1];
+                long childHigh = i == size ? high : keys[i] - 1L;
+                int[] childPath = Arrays.copyOf(path, path.length + 1);
+                childPath[path.length] = i;
+                Check check = new Check(children[i], childPath, childLow, childHigh);
+                if (innerNode.getCount(i) > FORK_THRESHOLD) {
+                    check.fork();
+                    forked.add(check);
+                } else {
+                    results[i] = check.compute();
+                }
+            }
+            int next = 0;
+            for (int i = 0; i <= size; i++) {
+                if (results[i] == null) {
+                    results[i] = forked.get(next++).join();
+                }
+            }
+
+            // report the leftmost violation, so the result does not depend on scheduling
+            int subtreeSize = 0;
+            for (int i = 0; i <= size; i++) {
+                if (results[i].violation != null) {
+                    return results[i];
+                }
+                if (results[i].height != results[0].height) {
+                    return new Result(0, 0, new Violation(path, "leaves below child " + i
+                            + " are at a different depth than below child 0"));
+                }
+                if (results[i].size != innerNode.getCount(i)) {
+                    return new Result(0, 0, new Violation(path, "count of child " + i + " is "
+                            + innerNode.getCount(i) + ", but it holds " + results[i].size + " keys"));
+                }
+                subtreeSize += results[i].size;
+            }
+            return new Result(results[0].height + 1, subtreeSize, null);
+        }
+
+        private String bound(long bound) {
+            if (bound == Long.MIN_VALUE) {
+                return "-inf";
+            }
+            return bound == Long.MAX_VALUE ? "+inf" : String.valueOf(bound);
+        }
+
+    }
+
+}
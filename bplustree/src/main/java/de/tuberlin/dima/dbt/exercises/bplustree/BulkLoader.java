@@ -0,0 +1,207 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiFunction;
+
+/**
+ * Builds a B+ tree bottom-up from entries that arrive in ascending key order.
+ * <p>
+ * Leaves are filled to the fill factor and closed; every closed node is passed
+ * up as a child to the level above, which closes its nodes the same way. Each
+ * level holds back its last closed node, so that the final, possibly underfull
+ * node of a level can be merged with it or share its entries. The loader only
+ * keeps O(height * capacity) entries in memory, however many are added.
+ */
+class BulkLoader {
+
+    private final int leafCapacity;
+
+    private final int innerCapacity;
+
+    private final int leafFill;
+
+    private final int innerFill;
+
+    private final BiFunction<Integer[], String[], LeafNode> newLeafNode;
+
+    private final BiFunction<Integer[], Node[], InnerNode> newInnerNode;
+
+    private final List<Level> levels = new ArrayList<>();
+
+    private boolean empty = true;
+
+    private int lastKey;
+
+    /**
+     * @param fillFactor Fraction of the capacity that nodes are filled to,
+     * but at least half of it.
+     */
+    BulkLoader(int leafCapacity, int innerCapacity, double fillFactor,
+               BiFunction<Integer[], String[], LeafNode> newLeafNode,
+               BiFunction<Integer[], Node[], InnerNode> newInnerNode) {
+        this.leafCapacity = leafCapacity;
+        this.innerCapacity = innerCapacity;
+        this.leafFill = fill(leafCapacity, fillFactor);
+        this.innerFill = fill(innerCapacity, fillFactor);
+        this.newLeafNode = newLeafNode;
+        this.newInnerNode = newInnerNode;
+    }
+
+    private static int fill(int capacity, double fillFactor) {
+        int fill = (int) Math.round(capacity * fillFactor);
+        return Math.max(Math.max(1, capacity / 2), Math.min(capacity, fill));
+    }
+
+    /**
+     * Append an entry. Keys have to be strictly increasing, as a tree stores
+     * every key at most once; entries scanned from a tree always are.
+     */
+    void add(int key, String value) {
+        if (!empty && key <= lastKey) {
+            throw new IllegalArgumentException(
+                    "keys have to be strictly increasing, but " + key + " follows " + lastKey);
+        }
+        empty = false;
+        lastKey = key;
+        append(0, key, value);
+    }
+
+    /**
+     * Close all levels.
+     * @return The root of the built tree, an empty leaf if nothing was added.
+     */
+    Node finish() {
+        if (levels.isEmpty()) {
+            return newLeafNode.apply(new Integer[0], new String[0]);
+        }
+        for (int height = 0; ; height++) {
+            Level level = levels.get(height);
+            List<Group> groups = level.finalGroups();
+            if (level.emitted == 0 && groups.size() == 1) {
+                return build(height, groups.get(0));
+            }
+            for (Group group : groups) {
+                emit(height, group);
+            }
+        }
+    }
+
+    private void append(int height, int key, Object payload) {
+        if (levels.size() == height) {
+            levels.add(new Level(height == 0 ? leafFill : innerFill + 1,
+                                 height == 0 ? leafCapacity : innerCapacity + 1));
+        }
+        Level level = levels.get(height);
+        level.current.add(key, payload);
+        if (level.current.size == level.target) {
+            Group free = null;
+            if (level.held != null) {
+                emit(height, level.held);
+                // the node copied the group, so the group can be refilled
+                free = level.held;
+                free.size = 0;
+            }
+            level.held = level.current;
+            level.current = free != null ? free : new Group(level.max);
+        }
+    }
+
+    private void emit(int height, Group group) {
+        levels.get(height).emitted++;
+        append(height + 1, group.keys[0], build(height, group));
+    }
+
+    private Node build(int height, Group group) {
+        if (height == 0) {
+            return newLeafNode.apply(Arrays.copyOf(group.keys, group.size),
+                                     Arrays.copyOf(group.payload, group.size, String[].class));
+        }
+        // the lowest key of every child but the first becomes a separator
+        return newInnerNode.apply(Arrays.copyOfRange(group.keys, 1, group.size),
+                                  Arrays.copyOf(group.payload, group.size, Node[].class));
+    }
+
+    /**
+     * Keys and leaf values or children of one node under construction. For
+     * children, the key is the lowest key in the child's subtree. Groups are
+     * sized for the largest node of their level up front, so adding to them
+     * never copies.
+     */
+    private static class Group {
+
+        final Integer[] keys;
+
+        final Object[] payload;
+
+        int size = 0;
+
+        Group(int max) {
+            keys = new Integer[max];
+            payload = new Object[max];
+        }
+
+        void add(int key, Object value) {
+            keys[size] = key;
+            payload[size] = value;
+            size++;
+        }
+
+    }
+
+    private static class Level {
+
+        // entries (or children) per closed node, and at most per node
+        final int target;
+
+        final int max;
+
+        Group held;
+
+        Group current;
+
+        int emitted = 0;
+
+        Level(int target, int max) {
+            this.target = target;
+            this.max = max;
+            this.current = new Group(max);
+        }
+
+        /**
+         * The last one or two nodes of this level, with an underfull last
+         * node merged into or balanced against the held back one.
+         */
+        List<Group> finalGroups() {
+            List<Group> groups = new ArrayList<>();
+            if (held == null || current.size == 0) {
+                groups.add(held == null ? current : held);
+                return groups;
+            }
+            int total = held.size + current.size;
+            if (total <= max) {
+                for (int i = 0; i < current.size; i++) {
+                    held.add(current.keys[i], current.payload[i]);
+                }
+                groups.add(held);
+                return groups;
+            }
+            // move entries from the held back node until both are balanced
+            int split = total / 2;
+            Group right = new Group(max);
+            for (int i = split; i < held.size; i++) {
+                right.add(held.keys[i], held.payload[i]);
+            }
+            for (int i = 0; i < current.size; i++) {
+                right.add(current.keys[i], current.payload[i]);
+            }
+            held.size = split;
+            groups.add(held);
+            groups.add(right);
+            return groups;
+        }
+
+    }
+
+}
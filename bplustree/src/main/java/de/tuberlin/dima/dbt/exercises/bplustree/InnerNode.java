@@ -7,6 +7,19 @@ public class InnerNode extends Node {
 
     private Node[] children;
 
+    // search layout of the separator keys, rebuilt lazily after the keys
+    // change; null while stale
+    private Eytzinger eytzinger;
+
+    // number of keys stored below each child
+    private int[] counts;
+
+    private boolean learnedRouting = false;
+
+    // learned model of the separator keys, rebuilt lazily like the
+    // Eytzinger layout; null while stale
+    private LinearModel model;
+
     public InnerNode(int capacity) {
         this(new Integer[] {}, new Node[] {null}, capacity);
     }
@@ -15,6 +28,128 @@ public class InnerNode extends Node {
         super(keys, capacity);
         assert keys.length == children.length - 1;
         this.children = Arrays.copyOf(children, capacity + 1);
+        recount();
+    }
+
+    @Override
+    public void setKeys(Integer[] keys) {
+        super.setKeys(keys);
+        eytzinger = null;
+        model = null;
+    }
+
+    /**
+     * Index of the child that covers the given key, i.e. the number of
+     * separator keys that are smaller or equal than the key.
+     * <p>
+     * The search runs over a copy of the separators in Eytzinger order, so the
+     * first levels of the implicit search tree share a cache line and the
+     * descent needs no data dependent branches.
+     * <p>
+     * With learned routing, an accurate linear model of the separators
+     * replaces the search, see {LinearModel}.
+     *
+     * @return The child index, or -1 if the node has no keys.
+     */
+    public int childIndex(int key) {
+        if (learnedRouting) {
+            LinearModel linearModel = model;
+            if (linearModel == null) {
+                linearModel = LinearModel.fit(keys);
+                model = linearModel;
+            }
+            if (linearModel.isAccurate()) {
+                return linearModel.childIndex(key);
+            }
+        }
+        Eytzinger layout = eytzinger;
+        if (layout == null) {
+            layout = buildEytzinger();
+        }
+        int[] e = layout.keys;
+        int n = e.length - 1;
+        if (n == 0) {
+            return -1;
+        }
+        int k = 1;
+        while (k <= n) {
+            k = 2 * k + (e[k] <= key ? 1 : 0);
+        }
+        // strip the trailing right turns (and the final left turn) to land on
+        // the smallest separator that is larger than the key
+        k >>= Integer.numberOfTrailingZeros(~k) + 1;
+        return layout.rank[k];
+    }
+
+    private Eytzinger buildEytzinger() {
+        int n = 0;
+        while (n < keys.length && keys[n] != null) {
+            n++;
+        }
+        int[] e = new int[n + 1];
+        int[] rank = new int[n + 1];
+        rank[0] = n;
+        fillEytzinger(e, rank, 0, 1);
+        Eytzinger layout = new Eytzinger(e, rank);
+        eytzinger = layout;
+        return layout;
+    }
+
+    private int fillEytzinger(int[] e, int[] rank, int i, int k) {
+        if (k < e.length) {
+            i = fillEytzinger(e, rank, i, 2 * k);
+            e[k] = keys[i];
+            rank[k] = i++;
+            i = fillEytzinger(e, rank, i, 2 * k + 1);
+        }
+        return i;
+    }
+
+    /**
+     * Separator keys in Eytzinger order. The fields are final, so readers
+     * that share a node without locking always see a completely built
+     * layout.
+     */
+    private static final class Eytzinger {
+
+        // separator keys in Eytzinger (BFS) order, 1-based
+        final int[] keys;
+
+        // sorted position of each slot, slot 0 means "no key is larger"
+        final int[] rank;
+
+        Eytzinger(int[] keys, int[] rank) {
+            this.keys = keys;
+            this.rank = rank;
+        }
+
+    }
+
+    /**
+     * Route keys through a linear model of the separators wherever it
+     * predicts the child index within a small error bound.
+     */
+    public void enableLearnedRouting() {
+        learnedRouting = true;
+    }
+
+    public void disableLearnedRouting() {
+        learnedRouting = false;
+        model = null;
+    }
+
+    /**
+     * Whether childIndex currently uses a model, i.e. learned routing is on
+     * and the model of the current separators is accurate.
+     */
+    public boolean usesLearnedRouting() {
+        if (!learnedRouting) {
+            return false;
+        }
+        if (model == null) {
+            model = LinearModel.fit(keys);
+        }
+        return model.isAccurate();
     }
 
     public Node[] getChildren() {
@@ -22,7 +157,43 @@ public class InnerNode extends Node {
     }
 
     public void setChildren(Node[] children) {
-        this.children = Arrays.copyOf(children, this.children.length);
+        copyInto(children, this.children);
+        recount();
+    }
+
+    /**
+     * Number of keys stored below the child at the given index.
+     */
+    public int getCount(int child) {
+        return counts[child];
+    }
+
+    /**
+     * Number of keys stored in the subtree rooted at this node.
+     */
+    public int getSubtreeSize() {
+        int size = 0;
+        for (int count : counts) {
+            size += count;
+        }
+        return size;
+    }
+
+    /**
+     * Recompute the per-child key counts from the children. The counts of
+     * inner children have to be up to date already.
+     */
+    public void recount() {
+        int[] counts = new int[children.length];
+        for (int i = 0; i < children.length; i++) {
+            Node child = children[i];
+            if (child instanceof LeafNode) {
+                counts[i] = ((LeafNode) child).size();
+            } else if (child instanceof InnerNode) {
+                counts[i] = ((InnerNode) child).getSubtreeSize();
+            }
+        }
+        this.counts = counts;
     }
 
     @Override
@@ -0,0 +1,21 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+/**
+ * The point operations that all tree implementations offer, so that tools
+ * such as the {TraceReplayer} can drive any of them.
+ */
+public interface KeyValueStore {
+
+    /**
+     * @return The stored value, or {null} if the key does not exist.
+     */
+    String lookup(Integer key);
+
+    void insert(int key, String value);
+
+    /**
+     * @return The original value, or {null} if the key does not exist.
+     */
+    String delete(Integer key);
+
+}
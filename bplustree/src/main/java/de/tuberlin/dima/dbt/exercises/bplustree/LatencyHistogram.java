@@ -0,0 +1,150 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in nanoseconds with logarithmic buckets.
+ * <p>
+ * Every power of two is split into 16 linear sub-buckets, so a percentile
+ * is off by less than 1/16 of its value, from single nanoseconds up to
+ * minutes, in a fixed array of about 600 counters. Recording only
+ * increments atomic counters and never blocks, so a histogram can be
+ * shared by several threads and read while they record.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // latencies of 2^MAX_EXPONENT ns (about 18 minutes) and more share the last bucket
+    private static final int MAX_EXPONENT = 40;
+
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder sum = new LongAdder();
+
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(nanos));
+        sum.add(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * A copy of the current counts. Latencies recorded while the copy is
+     * taken may or may not be part of it.
+     */
+    public Summary summary() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Summary(copy, sum.sum(), max.get());
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < 2 * SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * The smallest latency that falls into the bucket.
+     */
+    static long lowerBound(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * Counts of a histogram at one point in time.
+     */
+    public static class Summary {
+
+        private final long[] counts;
+
+        private final long count;
+
+        private final long sum;
+
+        private final long max;
+
+        Summary(long[] counts, long sum, long max) {
+            this.counts = counts;
+            long count = 0;
+            for (long bucketCount : counts) {
+                count += bucketCount;
+            }
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Sum of all latencies in nanoseconds.
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * The latency that the given percentage of the operations did not
+         * exceed, rounded up to the end of its bucket.
+         * @param percentile Between 0 and 100.
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length - 1; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(max, lowerBound(i + 1) - 1);
+                }
+            }
+            return max;
+        }
+
+        public String toString() {
+            return String.format("%d operations, p50 %.1f us, p99 %.1f us, p99.9 %.1f us, "
+                                 + "max %.1f us",
+                                 count, getPercentile(50) / 1e3, getPercentile(99) / 1e3,
+                                 getPercentile(99.9) / 1e3, max / 1e3);
+        }
+
+    }
+
+}
@@ -0,0 +1,51 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Arrays;
+
+/**
+ * Throughput and latency percentiles of a run of operations.
+ */
+public class LatencySummary {
+
+    private final long[] latencies;
+
+    private final long nanos;
+
+    /**
+     * @param latencies Latency of every operation, sorted in place.
+     * @param nanos Duration of the whole run.
+     */
+    public LatencySummary(long[] latencies, long nanos) {
+        this.latencies = latencies;
+        this.nanos = nanos;
+        Arrays.sort(latencies);
+    }
+
+    public int getCount() {
+        return latencies.length;
+    }
+
+    public double getThroughput() {
+        return latencies.length * 1e9 / nanos;
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     */
+    public long getLatencyNanos(double percentile) {
+        if (latencies.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+        return latencies[Math.max(0, Math.min(latencies.length - 1, index))];
+    }
+
+    public String toString() {
+        return String.format("%d operations, %.0f ops/s, latency p50 %.1f us, p99 %.1f us, "
+                             + "p99.9 %.1f us, max %.1f us",
+                             getCount(), getThroughput(),
+                             getLatencyNanos(50) / 1e3, getLatencyNanos(99) / 1e3,
+                             getLatencyNanos(99.9) / 1e3, getLatencyNanos(100) / 1e3);
+    }
+
+}
@@ -6,6 +6,17 @@ public class LeafNode extends Node {
 
     private String[] values;
 
+    // one byte hash per key slot, null while fingerprints are disabled
+    private byte[] fingerprints;
+
+    // frame-of-reference encoded keys, replaces keys while compression is on
+    private PackedKeys packedKeys;
+
+    // dictionary codes, replace values while the leaf is dictionary encoded
+    private int[] valueCodes;
+
+    private ValueDictionary dictionary;
+
     public LeafNode(int capacity) {
         this(new Integer[] {}, new String[] {}, capacity);
     }
@@ -16,12 +27,199 @@ public class LeafNode extends Node {
         this.values = Arrays.copyOf(values, capacity);
     }
 
+    @Override
+    public Integer[] getKeys() {
+        if (packedKeys != null) {
+            return packedKeys.decode(capacity);
+        }
+        return super.getKeys();
+    }
+
+    @Override
+    public void setKeys(Integer[] keys) {
+        if (packedKeys != null) {
+            packedKeys = PackedKeys.encode(Arrays.copyOf(keys, capacity));
+        } else {
+            super.setKeys(keys);
+        }
+        if (fingerprints != null) {
+            updateFingerprints(keys);
+        }
+    }
+
+    /**
+     * Number of keys stored in this leaf.
+     */
+    public int size() {
+        if (packedKeys != null) {
+            return packedKeys.size();
+        }
+        int size = 0;
+        for (Integer key : keys) {
+            if (key != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Store the keys of this leaf as base key plus bit-packed distances.
+     * <p>
+     * Lookups search the packed form directly. getKeys decodes a fresh array
+     * and setKeys encodes again, so this trades update speed for density.
+     */
+    public void compressKeys() {
+        if (packedKeys == null) {
+            packedKeys = PackedKeys.encode(keys);
+            keys = null;
+        }
+    }
+
+    public void decompressKeys() {
+        if (packedKeys != null) {
+            keys = packedKeys.decode(capacity);
+            packedKeys = null;
+        }
+    }
+
+    public boolean hasCompressedKeys() {
+        return packedKeys != null;
+    }
+
+    /**
+     * Number of bits per key while the keys are compressed, see
+     * {PackedKeys.getWidth}, or 32 for plain keys.
+     */
+    public int getKeyWidth() {
+        return packedKeys == null ? Integer.SIZE : packedKeys.getWidth();
+    }
+
+    /**
+     * Keep a one byte fingerprint of every key, so that indexOf only has to
+     * compare the full keys whose fingerprint matches.
+     */
+    public void enableFingerprints() {
+        fingerprints = new byte[capacity];
+        updateFingerprints(getKeys());
+    }
+
+    public void disableFingerprints() {
+        fingerprints = null;
+    }
+
+    public boolean hasFingerprints() {
+        return fingerprints != null;
+    }
+
+    /**
+     * Position of the given key in this leaf.
+     * @return The position, or -1 if the key is not stored in this leaf.
+     */
+    public int indexOf(Integer key) {
+        if (packedKeys != null) {
+            return packedKeys.indexOf(key);
+        }
+        if (fingerprints == null) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null && keys[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        byte fingerprint = fingerprint(key);
+        for (int i = 0; i < fingerprints.length; i++) {
+            if (fingerprints[i] == fingerprint && keys[i] != null
+                    && keys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void updateFingerprints(Integer[] keys) {
+        for (int i = 0; i < capacity; i++) {
+            Integer key = i < keys.length ? keys[i] : null;
+            fingerprints[i] = key == null ? 0 : fingerprint(key);
+        }
+    }
+
+    private static byte fingerprint(Integer key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return (byte) (h >>> 24);
+    }
+
     public String[] getValues() {
+        if (valueCodes != null) {
+            String[] values = new String[capacity];
+            for (int i = 0; i < capacity; i++) {
+                values[i] = dictionary.decode(valueCodes[i]);
+            }
+            return values;
+        }
         return values;
     }
 
     public void setValues(String[] values) {
-        this.values = Arrays.copyOf(values, this.values.length);
+        if (valueCodes != null) {
+            valueCodes = encode(values);
+        } else {
+            copyInto(values, this.values);
+        }
+    }
+
+    /**
+     * Value at the given position, without decoding the other values.
+     */
+    public String getValue(int pos) {
+        if (valueCodes != null) {
+            return dictionary.decode(valueCodes[pos]);
+        }
+        return values[pos];
+    }
+
+    /**
+     * Replace the value at the given position.
+     */
+    public void setValue(int pos, String value) {
+        if (valueCodes != null) {
+            valueCodes[pos] = dictionary.encode(value);
+        } else {
+            values[pos] = value;
+        }
+    }
+
+    /**
+     * Store int codes from the given dictionary instead of the values.
+     * getValues decodes a fresh array, setValues encodes again.
+     */
+    public void encodeValues(ValueDictionary dictionary) {
+        if (valueCodes == null) {
+            this.dictionary = dictionary;
+            valueCodes = encode(values);
+            values = null;
+        }
+    }
+
+    public void decodeValues() {
+        if (valueCodes != null) {
+            values = getValues();
+            valueCodes = null;
+            dictionary = null;
+        }
+    }
+
+    public boolean hasEncodedValues() {
+        return valueCodes != null;
+    }
+
+    private int[] encode(String[] values) {
+        int[] codes = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            codes[i] = dictionary.encode(i < values.length ? values[i] : null);
+        }
+        return codes;
     }
 
     @Override
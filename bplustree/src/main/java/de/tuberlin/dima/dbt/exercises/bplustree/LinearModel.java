@@ -0,0 +1,96 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+/**
+ * Learned search over the separator keys of an inner node: a line that
+ * predicts the child index of a key, together with the largest error it
+ * makes on the separators.
+ * <p>
+ * The line runs through the smallest and the largest separator, so it fits
+ * evenly spread keys such as sequential IDs. The models of all nodes of a
+ * level together form a piecewise-linear model of the keys of that level.
+ * A lookup evaluates the line and scans the few separators within the
+ * error bound around the prediction. Since the prediction grows with the
+ * key, a bound that holds at both sides of every separator holds for all
+ * keys. Models with a larger error than MAX_ERROR are not used.
+ */
+final class LinearModel {
+
+    /**
+     * Largest error up to which the model beats the search it replaces.
+     */
+    static final int MAX_ERROR = 4;
+
+    private final int[] keys;
+
+    private final double first;
+
+    private final double slope;
+
+    private final int maxError;
+
+    private LinearModel(int[] keys, double first, double slope) {
+        this.keys = keys;
+        this.first = first;
+        this.slope = slope;
+        int maxError = 0;
+        for (int i = 0; i < keys.length; i++) {
+            // keys[i] - 1 has i separators below or equal, keys[i] one more
+            maxError = Math.max(maxError, Math.abs(predict(keys[i] - 1.0) - i));
+            maxError = Math.max(maxError, Math.abs(predict(keys[i]) - i - 1));
+        }
+        this.maxError = keys.length == 0 ? Integer.MAX_VALUE : maxError;
+    }
+
+    /**
+     * Fit a model to the non-null prefix of the given separator keys.
+     */
+    static LinearModel fit(Integer[] separators) {
+        int n = 0;
+        while (n < separators.length && separators[n] != null) {
+            n++;
+        }
+        int[] keys = new int[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = separators[i];
+        }
+        if (n < 2) {
+            return new LinearModel(keys, n == 0 ? 0 : keys[0], 0);
+        }
+        return new LinearModel(keys, keys[0], (n - 1) / ((double) keys[n - 1] - keys[0]));
+    }
+
+    /**
+     * Whether the error bound is small enough for the model to be used.
+     */
+    boolean isAccurate() {
+        return maxError <= MAX_ERROR;
+    }
+
+    int getMaxError() {
+        return maxError;
+    }
+
+    /**
+     * Number of separators smaller or equal than the key, see
+     * {InnerNode.childIndex}. Only valid for accurate models.
+     */
+    int childIndex(int key) {
+        int predicted = predict(key);
+        int low = Math.max(0, predicted - maxError);
+        int high = Math.min(keys.length, predicted + maxError);
+        int index = low;
+        while (index < high && keys[index] <= key) {
+            index++;
+        }
+        return index;
+    }
+
+    private int predict(double key) {
+        double position = (key - first) * slope + 1;
+        if (position <= 0) {
+            return 0;
+        }
+        return position >= keys.length ? keys.length : (int) position;
+    }
+
+}
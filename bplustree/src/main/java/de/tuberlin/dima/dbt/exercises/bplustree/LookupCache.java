@@ -0,0 +1,203 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded cache for the results of {BPlusTree.lookup}.
+ * <p>
+ * The cache follows the W-TinyLFU design: new entries are first kept in a
+ * small LRU window. When an entry falls out of the window, it is only admitted
+ * to the main LRU region if it has been requested more often than the entry it
+ * would evict from there. Request frequencies are tracked approximately in a
+ * count-min sketch of 4-bit counters that is halved periodically, so that keys
+ * which were hot a long time ago age out.
+ * <p>
+ * All methods are synchronized, so the cache can be shared between threads.
+ */
+public class LookupCache {
+
+    private static final int SKETCH_DEPTH = 4;
+
+    private static final int MAX_FREQUENCY = 15;
+
+    private final int windowCapacity;
+
+    private final int mainCapacity;
+
+    private final LinkedHashMap<Integer, String> window;
+
+    private final LinkedHashMap<Integer, String> main;
+
+    // count-min sketch, SKETCH_DEPTH rows of saturating counters
+    private final byte[][] sketch;
+
+    private final int sketchMask;
+
+    private final int sampleSize;
+
+    private int additions = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    public LookupCache(int maxSize) {
+        assert maxSize > 0;
+        this.windowCapacity = Math.max(1, maxSize / 100);
+        this.mainCapacity = Math.max(1, maxSize - windowCapacity);
+        this.window = new LinkedHashMap<>(16, 0.75f, true);
+        this.main = new LinkedHashMap<>(16, 0.75f, true);
+        int width = Integer.highestOneBit(Math.max(16, maxSize) * 2 - 1);
+        this.sketch = new byte[SKETCH_DEPTH][width];
+        this.sketchMask = width - 1;
+        this.sampleSize = 10 * maxSize;
+    }
+
+    /**
+     * Lookup a cached value.
+     * @return The cached value, or {null} if the key is not cached.
+     */
+    public synchronized String get(Integer key) {
+        recordAccess(key);
+        String value = window.get(key);
+        if (value == null) {
+            value = main.get(key);
+        }
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    /**
+     * Offer a value that was looked up in the tree to the cache.
+     */
+    public synchronized void put(Integer key, String value) {
+        if (window.containsKey(key)) {
+            window.put(key, value);
+            return;
+        }
+        if (main.containsKey(key)) {
+            main.put(key, value);
+            return;
+        }
+        window.put(key, value);
+        if (window.size() > windowCapacity) {
+            Map.Entry<Integer, String> candidate = removeEldest(window);
+            admit(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    /**
+     * Remove the cached value for the given key, if any.
+     */
+    public synchronized void invalidate(Integer key) {
+        if (window.remove(key) == null) {
+            main.remove(key);
+        }
+    }
+
+    /**
+     * Remove the cached values of all keys between from and to, both
+     * inclusive.
+     */
+    public synchronized void invalidateRange(int from, int to) {
+        window.keySet().removeIf(key -> key >= from && key <= to);
+        main.keySet().removeIf(key -> key >= from && key <= to);
+    }
+
+    /**
+     * Remove all cached values. The statistics are kept.
+     */
+    public synchronized void clear() {
+        window.clear();
+        main.clear();
+    }
+
+    public synchronized int size() {
+        return window.size() + main.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Fraction of get calls that were answered from the cache.
+     */
+    public synchronized double getHitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0.0 : (double) hits / requests;
+    }
+
+    private void admit(Integer key, String value) {
+        if (main.size() < mainCapacity) {
+            main.put(key, value);
+            return;
+        }
+        Iterator<Integer> victims = main.keySet().iterator();
+        Integer victim = victims.next();
+        // TinyLFU: only replace the victim by a more popular candidate
+        if (frequency(key) > frequency(victim)) {
+            victims.remove();
+            main.put(key, value);
+        }
+    }
+
+    private Map.Entry<Integer, String> removeEldest(LinkedHashMap<Integer, String> map) {
+        Iterator<Map.Entry<Integer, String>> entries = map.entrySet().iterator();
+        Map.Entry<Integer, String> eldest = entries.next();
+        entries.remove();
+        return eldest;
+    }
+
+    private void recordAccess(Integer key) {
+        int hash = spread(key);
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            int slot = index(hash, row);
+            if (sketch[row][slot] < MAX_FREQUENCY) {
+                sketch[row][slot]++;
+            }
+        }
+        if (++additions >= sampleSize) {
+            age();
+        }
+    }
+
+    private int frequency(Integer key) {
+        int hash = spread(key);
+        int frequency = MAX_FREQUENCY;
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            frequency = Math.min(frequency, sketch[row][index(hash, row)]);
+        }
+        return frequency;
+    }
+
+    private void age() {
+        for (byte[] counters : sketch) {
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] >>= 1;
+            }
+        }
+        additions /= 2;
+    }
+
+    private int index(int hash, int row) {
+        int h = hash * (0x9E3779B9 + 2 * row);
+        return (h ^ (h >>> 16)) & sketchMask;
+    }
+
+    private static int spread(Integer key) {
+        int h = key.hashCode() * 0x85EBCA6B;
+        return h ^ (h >>> 13);
+    }
+
+}
@@ -0,0 +1,155 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counting Bloom filter over the keys of a B+ tree.
+ * <p>
+ * Each key sets {hashes} counters. A key is definitely absent if one of its
+ * counters is zero, so most lookups for missing keys can be answered without
+ * touching the tree. Because the filter counts instead of setting bits, keys
+ * can be removed again. Counters that overflow stay saturated and are never
+ * decremented, which keeps the filter free of false negatives.
+ * <p>
+ * mightContain and recordFalsePositive may be called by concurrent readers,
+ * e.g. lookups under the shared lock of a {TreeServer}, so the lookup
+ * statistics are kept in {LongAdder}s. Adding and removing keys needs
+ * exclusive access.
+ */
+public class MembershipFilter {
+
+    private static final int SATURATED = 0xFF;
+
+    private final byte[] counters;
+
+    private final int hashes;
+
+    private final int expectedKeys;
+
+    private int size = 0;
+
+    private final LongAdder negatives = new LongAdder();
+
+    private final LongAdder falsePositives = new LongAdder();
+
+    /**
+     * Create a filter for the given number of keys that answers
+     * mightContain with a false positive rate of about falsePositiveRate.
+     */
+    public MembershipFilter(int expectedKeys, double falsePositiveRate) {
+        assert expectedKeys > 0;
+        assert falsePositiveRate > 0 && falsePositiveRate < 1;
+        double ln2 = Math.log(2);
+        long slots = (long) Math.ceil(
+                -expectedKeys * Math.log(falsePositiveRate) / (ln2 * ln2));
+        this.counters = new byte[(int) Math.min(Integer.MAX_VALUE - 8,
+                                                Math.max(64, slots))];
+        this.hashes = Math.max(1, (int) Math.round(
+                (double) counters.length / expectedKeys * ln2));
+        this.expectedKeys = expectedKeys;
+    }
+
+    public void add(int key) {
+        int h1 = hash(key);
+        int h2 = (h1 >>> 16) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int slot = slot(h1 + i * h2);
+            if ((counters[slot] & SATURATED) != SATURATED) {
+                counters[slot]++;
+            }
+        }
+        size++;
+    }
+
+    /**
+     * Remove a key that was added before.
+     */
+    public void remove(int key) {
+        int h1 = hash(key);
+        int h2 = (h1 >>> 16) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int slot = slot(h1 + i * h2);
+            int count = counters[slot] & SATURATED;
+            if (count != SATURATED && count != 0) {
+                counters[slot]--;
+            }
+        }
+        size--;
+    }
+
+    /**
+     * @return {false} if the key was definitely not added, {true} if it
+     * might have been added.
+     */
+    public boolean mightContain(int key) {
+        int h1 = hash(key);
+        int h2 = (h1 >>> 16) | 1;
+        for (int i = 0; i < hashes; i++) {
+            if (counters[slot(h1 + i * h2)] == 0) {
+                negatives.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record that a key for which mightContain returned {true} turned out to
+     * be missing.
+     */
+    public void recordFalsePositive() {
+        falsePositives.increment();
+    }
+
+    public void clear() {
+        Arrays.fill(counters, (byte) 0);
+        size = 0;
+    }
+
+    /**
+     * Number of keys in the filter.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return {true} if the filter holds so many more keys than it was sized
+     * for that it should be rebuilt with a larger size.
+     */
+    public boolean isOverloaded() {
+        return size > 2 * expectedKeys;
+    }
+
+    /**
+     * Observed false positive rate, i.e. the fraction of lookups for missing
+     * keys that the filter did not reject.
+     */
+    public double getFalsePositiveRate() {
+        long falsePositives = this.falsePositives.sum();
+        long missing = negatives.sum() + falsePositives;
+        return missing == 0 ? 0.0 : (double) falsePositives / missing;
+    }
+
+    /**
+     * False positive rate predicted from the number of keys and the size of
+     * the filter.
+     */
+    public double getExpectedFalsePositiveRate() {
+        double empty = Math.exp(-(double) hashes * size / counters.length);
+        return Math.pow(1 - empty, hashes);
+    }
+
+    private int slot(int hash) {
+        return (hash & Integer.MAX_VALUE) % counters.length;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        h ^= h >>> 15;
+        h *= 0x85EBCA6B;
+        return h ^ (h >>> 13);
+    }
+
+}
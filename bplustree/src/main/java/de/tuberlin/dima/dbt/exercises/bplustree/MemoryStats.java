@@ -0,0 +1,343 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Arrays;
+
+/**
+ * Estimated memory footprint of a tree, see {BPlusTree.memoryStats}.
+ * <p>
+ * The estimates assume a 64-bit JVM with compressed references: 12 byte
+ * object headers, 16 byte array headers, 4 byte references and objects
+ * aligned to 8 bytes. Every stored key counts as a boxed {Integer} of its
+ * own, and every stored value as a string of its own, as when the values
+ * were read from a file or the network.
+ * <p>
+ * Leaves are counted in the layout they currently use: compressed keys as
+ * their packed words instead of the key array and the boxed keys, and
+ * dictionary encoded values as their code array instead of the value array.
+ * The dictionary holds each distinct value once; it is counted once per
+ * tree, with the strings, map entries and list slots of its values.
+ * <p>
+ * Node arrays are always allocated to the full capacity of the node. The
+ * bytes of the slots that hold no key, value or child, and the alignment
+ * padding of all arrays, are reported as wasted; they are part of the key,
+ * value, pointer and overhead bytes.
+ */
+public class MemoryStats {
+
+    static final int OBJECT_HEADER = 12;
+
+    static final int ARRAY_HEADER = 16;
+
+    static final int REFERENCE = 4;
+
+    static final int ALIGNMENT = 8;
+
+    static final int INTEGER_BYTES = align(OBJECT_HEADER + Integer.BYTES);
+
+    // header plus fields, see LeafNode and InnerNode
+    static final int LEAF_OBJECT_BYTES = align(OBJECT_HEADER + 7 * REFERENCE);
+
+    static final int INNER_OBJECT_BYTES = align(OBJECT_HEADER + 6 * REFERENCE + 1);
+
+    static final int EYTZINGER_OBJECT_BYTES = align(OBJECT_HEADER + 2 * REFERENCE);
+
+    // separator array, line and error bound, see LinearModel
+    static final int LINEAR_MODEL_OBJECT_BYTES =
+            align(OBJECT_HEADER + REFERENCE + 2 * Double.BYTES + Integer.BYTES);
+
+    // base, width and size plus the word array, see PackedKeys
+    static final int PACKED_KEYS_OBJECT_BYTES = align(OBJECT_HEADER + 3 * Integer.BYTES + REFERENCE);
+
+    // the dictionary with its HashMap and ArrayList, see ValueDictionary
+    static final int DICTIONARY_OBJECT_BYTES = align(OBJECT_HEADER + 2 * REFERENCE)
+            + align(OBJECT_HEADER + 3 * Integer.BYTES + Float.BYTES + 4 * REFERENCE)
+            + align(OBJECT_HEADER + 2 * Integer.BYTES + REFERENCE);
+
+    // hash, coder and the byte array, see String
+    static final int STRING_OBJECT_BYTES = align(OBJECT_HEADER + Integer.BYTES + 2 + REFERENCE);
+
+    // a HashMap node with its boxed code, plus a table slot and a list slot
+    static final int DICTIONARY_ENTRY_BYTES = align(OBJECT_HEADER + Integer.BYTES + 3 * REFERENCE)
+            + INTEGER_BYTES + 2 * REFERENCE;
+
+    private final Structure structure;
+
+    private final int size;
+
+    private final long dictionaryBytes;
+
+    MemoryStats(Structure structure, int size, ValueDictionary dictionary) {
+        this.structure = structure;
+        this.size = size;
+        long dictionaryBytes = 0;
+        if (dictionary != null) {
+            dictionaryBytes = DICTIONARY_OBJECT_BYTES
+                    + (long) DICTIONARY_ENTRY_BYTES * dictionary.size();
+            for (String value : dictionary.getValues()) {
+                dictionaryBytes += string(value);
+            }
+        }
+        this.dictionaryBytes = dictionaryBytes;
+    }
+
+    /**
+     * Number of levels, including the leaves.
+     */
+    public int getHeight() {
+        return structure.nodes.length;
+    }
+
+    /**
+     * @param level Distance from the leaves, which are at level 0.
+     */
+    public int getNodeCount(int level) {
+        return structure.nodes[level];
+    }
+
+    public int getLeafCount() {
+        return structure.nodes[0];
+    }
+
+    public int getInnerNodeCount() {
+        int count = 0;
+        for (int level = 1; level < structure.nodes.length; level++) {
+            count += structure.nodes[level];
+        }
+        return count;
+    }
+
+    /**
+     * Number of key slots allocated at the given level.
+     */
+    public long getKeySlots(int level) {
+        return structure.keySlots[level];
+    }
+
+    /**
+     * Number of key slots in use at the given level.
+     */
+    public long getUsedKeySlots(int level) {
+        return level == 0 ? size : structure.usedKeys[level];
+    }
+
+    /**
+     * Share of the leaf slots in use, the fill factor of the leaves.
+     */
+    public double getLeafFill() {
+        return structure.keySlots[0] == 0 ? 0 : (double) size / structure.keySlots[0];
+    }
+
+    /**
+     * Key arrays of all nodes and the boxed keys in them, or the packed keys
+     * of compressed leaves.
+     */
+    public long getKeyBytes() {
+        long boxedKeys = size - structure.packedKeys + structure.usedInnerKeys();
+        return structure.keyArrayBytes + INTEGER_BYTES * boxedKeys;
+    }
+
+    /**
+     * Value arrays and value strings of the leaves, or their code arrays and
+     * the value dictionary. Between two measurements, the strings are
+     * estimated from their average size at the last one.
+     */
+    public long getValueBytes() {
+        long plainValues = size - structure.encodedValues;
+        long stringBytes = structure.plainValues == 0 ? 0
+                : structure.stringBytes * plainValues / structure.plainValues;
+        return structure.valueArrayBytes + stringBytes + dictionaryBytes;
+    }
+
+    /**
+     * Child arrays of the inner nodes.
+     */
+    public long getPointerBytes() {
+        return structure.childArrayBytes;
+    }
+
+    /**
+     * Node objects, subtree counts, search layouts, learned models and
+     * fingerprints.
+     */
+    public long getOverheadBytes() {
+        return structure.overheadBytes;
+    }
+
+    public long getWastedBytes() {
+        long unusedKeys = structure.keySlots[0] - size;
+        long unusedKeyReferences = unusedKeys - (structure.packedKeySlots - structure.packedKeys);
+        // every unused leaf slot wastes a value reference or code, and a
+        // key reference unless the keys are packed
+        return structure.wastedInnerBytes + structure.paddingBytes
+                + REFERENCE * unusedKeys + REFERENCE * unusedKeyReferences;
+    }
+
+    public long getTotalBytes() {
+        return getKeyBytes() + getValueBytes() + getPointerBytes() + getOverheadBytes();
+    }
+
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int level = getHeight() - 1; level >= 0; level--) {
+            text.append(String.format("level %d: %d nodes, %d of %d key slots used%n", level,
+                                      getNodeCount(level), getUsedKeySlots(level),
+                                      getKeySlots(level)));
+        }
+        text.append(String.format("keys %d B, values %d B, pointers %d B, overhead %d B, "
+                                  + "total %d B, wasted %d B",
+                                  getKeyBytes(), getValueBytes(), getPointerBytes(),
+                                  getOverheadBytes(), getTotalBytes(), getWastedBytes()));
+        return text.toString();
+    }
+
+    static int align(int bytes) {
+        return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * Size of a string with its byte array, which takes one byte per char
+     * if all chars are Latin-1 and two otherwise.
+     */
+    static long string(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int bytesPerChar = 1;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 0xFF) {
+                bytesPerChar = 2;
+                break;
+            }
+        }
+        return STRING_OBJECT_BYTES + align(ARRAY_HEADER + bytesPerChar * value.length());
+    }
+
+    /**
+     * The part of the stats that only changes with the node layout, measured
+     * in one pass over the inner nodes and leaves.
+     */
+    static final class Structure {
+
+        // per level, leaves at index 0
+        int[] nodes;
+
+        long[] keySlots;
+
+        long[] usedKeys;
+
+        long keyArrayBytes;
+
+        // keys and key slots of the leaves with compressed keys
+        long packedKeys;
+
+        long packedKeySlots;
+
+        long valueArrayBytes;
+
+        // keys of the leaves with dictionary encoded values
+        long encodedValues;
+
+        // keys of the other leaves, and the strings of their values
+        long plainValues;
+
+        long stringBytes;
+
+        long childArrayBytes;
+
+        long overheadBytes;
+
+        // unused key and child slots of inner nodes
+        long wastedInnerBytes;
+
+        long paddingBytes;
+
+        static Structure measure(Node root) {
+            Structure structure = new Structure();
+            int height = 1;
+            for (Node node = root; node instanceof InnerNode; ) {
+                node = ((InnerNode) node).getChildren()[0];
+                height++;
+            }
+            structure.nodes = new int[height];
+            structure.keySlots = new long[height];
+            structure.usedKeys = new long[height];
+            structure.add(root, height - 1);
+            return structure;
+        }
+
+        long usedInnerKeys() {
+            return Arrays.stream(usedKeys).skip(1).sum();
+        }
+
+        private void add(Node node, int level) {
+            int capacity = node.getCapacity();
+            nodes[level]++;
+            keySlots[level] += capacity;
+            if (node instanceof LeafNode) {
+                addLeaf((LeafNode) node);
+                return;
+            }
+            keyArrayBytes += array(capacity, REFERENCE);
+            InnerNode innerNode = (InnerNode) node;
+            Node[] children = innerNode.getChildren();
+            int used = 0;
+            for (Integer key : innerNode.getKeys()) {
+                if (key != null) {
+                    used++;
+                }
+            }
+            usedKeys[level] += used;
+            childArrayBytes += array(children.length, REFERENCE);
+            // node, subtree counts, and the search layout with its two arrays
+            overheadBytes += INNER_OBJECT_BYTES + array(children.length, Integer.BYTES)
+                    + EYTZINGER_OBJECT_BYTES + 2 * array(used + 1, Integer.BYTES);
+            if (innerNode.usesLearnedRouting()) {
+                // the model keeps its own copy of the separators
+                overheadBytes += LINEAR_MODEL_OBJECT_BYTES + array(used, Integer.BYTES);
+            }
+            wastedInnerBytes += (long) REFERENCE * (capacity - used)
+                    + (long) REFERENCE * (children.length - used - 1);
+            for (int i = 0; i <= used; i++) {
+                add(children[i], level - 1);
+            }
+        }
+
+        private void addLeaf(LeafNode leaf) {
+            int capacity = leaf.getCapacity();
+            int size = leaf.size();
+            if (leaf.hasCompressedKeys()) {
+                int words = (int) (((long) size * leaf.getKeyWidth() + 63) / 64);
+                keyArrayBytes += PACKED_KEYS_OBJECT_BYTES + array(words, Long.BYTES);
+                packedKeys += size;
+                packedKeySlots += capacity;
+            } else {
+                keyArrayBytes += array(capacity, REFERENCE);
+            }
+            if (leaf.hasEncodedValues()) {
+                valueArrayBytes += array(capacity, Integer.BYTES);
+                encodedValues += size;
+            } else {
+                valueArrayBytes += array(capacity, REFERENCE);
+                for (int i = 0; i < size; i++) {
+                    stringBytes += string(leaf.getValue(i));
+                }
+                plainValues += size;
+            }
+            overheadBytes += LEAF_OBJECT_BYTES;
+            if (leaf.hasFingerprints()) {
+                overheadBytes += array(capacity, Byte.BYTES);
+            }
+        }
+
+        /**
+         * Aligned size of an array, counting its padding as wasted.
+         */
+        private long array(int length, int elementBytes) {
+            int bytes = ARRAY_HEADER + length * elementBytes;
+            paddingBytes += align(bytes) - bytes;
+            return align(bytes);
+        }
+
+    }
+
+}
@@ -0,0 +1,147 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A change to the entries of a tree, as reported to a {MutationListener}.
+ * <p>
+ * Every mutation carries the sequence number the tree assigned to it.
+ * Sequence numbers start at 1 and increase by one per mutation, so a gap
+ * means a lost mutation. Mutations that do not change any entry, such as
+ * deleting a missing key, are not reported and get no sequence number.
+ */
+public final class Mutation {
+
+    public enum Type {
+        INSERT, DELETE, DELETE_RANGE, CLEAR, UPSERT
+    }
+
+    private final long sequence;
+
+    private final Type type;
+
+    private final int key;
+
+    // upper bound of DELETE_RANGE, inclusive
+    private final int toKey;
+
+    private final String value;
+
+    private Mutation(long sequence, Type type, int key, int toKey, String value) {
+        this.sequence = sequence;
+        this.type = type;
+        this.key = key;
+        this.toKey = toKey;
+        this.value = value;
+    }
+
+    public static Mutation insert(long sequence, int key, String value) {
+        return new Mutation(sequence, Type.INSERT, key, key, value);
+    }
+
+    /**
+     * An insert that came in a sorted run, see {BPlusTree.upsertSorted}.
+     * Like a plain insert, it replaces the value if the key already existed.
+     */
+    public static Mutation upsert(long sequence, int key, String value) {
+        return new Mutation(sequence, Type.UPSERT, key, key, value);
+    }
+
+    public static Mutation delete(long sequence, int key) {
+        return new Mutation(sequence, Type.DELETE, key, key, null);
+    }
+
+    public static Mutation deleteRange(long sequence, int from, int to) {
+        return new Mutation(sequence, Type.DELETE_RANGE, from, to, null);
+    }
+
+    public static Mutation clear(long sequence) {
+        return new Mutation(sequence, Type.CLEAR, 0, 0, null);
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * The inserted or deleted key, or the lower bound of a range delete.
+     */
+    public int getKey() {
+        return key;
+    }
+
+    /**
+     * The upper bound of a range delete, inclusive.
+     */
+    public int getToKey() {
+        return toKey;
+    }
+
+    /**
+     * The inserted or upserted value, {null} for all other types.
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Apply this mutation to the given tree.
+     */
+    public void applyTo(BPlusTree tree) {
+        switch (type) {
+            case INSERT:
+                tree.insert(key, value);
+                break;
+            case DELETE:
+                tree.delete(key);
+                break;
+            case DELETE_RANGE:
+                tree.deleteRange(key, toKey);
+                break;
+            case UPSERT:
+                Map.Entry<Integer, String> entry = new AbstractMap.SimpleImmutableEntry<>(key, value);
+                tree.upsertSorted(Collections.singletonList(entry).iterator());
+                break;
+            default:
+                tree.clear();
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Mutation)) {
+            return false;
+        }
+        Mutation other = (Mutation) o;
+        return sequence == other.sequence && type == other.type && key == other.key
+                && toKey == other.toKey && Objects.equals(value, other.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(sequence, type, key, toKey, value);
+    }
+
+    public String toString() {
+        switch (type) {
+            case INSERT:
+                return sequence + ": insert " + key + " => " + value;
+            case DELETE:
+                return sequence + ": delete " + key;
+            case DELETE_RANGE:
+                return sequence + ": delete [" + key + ", " + toKey + "]";
+            case UPSERT:
+                return sequence + ": upsert " + key + " => " + value;
+            default:
+                return sequence + ": clear";
+        }
+    }
+
+}
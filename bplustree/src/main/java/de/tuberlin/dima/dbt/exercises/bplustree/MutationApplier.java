@@ -0,0 +1,143 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replays a stream of mutations into a replica tree in batches.
+ * <p>
+ * Mutations are collected until a batch is full. Within a batch, the point
+ * mutations between two range deletes or clears are coalesced to the last
+ * one per key and applied in key order, so a replica does less and more
+ * local work than the source did. This is exact because a tree stores every
+ * key at most once: an insert or upsert leaves the key with its value, a
+ * delete leaves it absent, whatever came before. The replica is only
+ * consistent with the source after a flush.
+ * <p>
+ * Sequence numbers have to follow each other without gaps. Mutations that
+ * were already applied are skipped, so a stream may be replayed from an
+ * earlier position after a reconnect.
+ */
+public class MutationApplier implements MutationListener {
+
+    private final BPlusTree target;
+
+    private final int batchSize;
+
+    private final List<Mutation> batch = new ArrayList<>();
+
+    // sequence number of the last mutation added to the batch
+    private long lastSequence;
+
+    private long appliedSequence;
+
+    public MutationApplier(BPlusTree target, int batchSize) {
+        this(target, batchSize, 0);
+    }
+
+    /**
+     * @param appliedSequence Sequence number of the last mutation that the
+     * target already contains, e.g. because it was loaded from a snapshot.
+     */
+    public MutationApplier(BPlusTree target, int batchSize, long appliedSequence) {
+        this.target = target;
+        this.batchSize = batchSize;
+        this.lastSequence = appliedSequence;
+        this.appliedSequence = appliedSequence;
+    }
+
+    /**
+     * Add a mutation to the current batch, and apply the batch if it is
+     * full.
+     * @throws IllegalStateException If mutations between the last one and
+     * this one are missing.
+     */
+    @Override
+    public void onMutation(Mutation mutation) {
+        if (mutation.getSequence() <= lastSequence) {
+            return;
+        }
+        if (mutation.getSequence() != lastSequence + 1) {
+            throw new IllegalStateException("mutations " + (lastSequence + 1) + " to "
+                    + (mutation.getSequence() - 1) + " are missing");
+        }
+        lastSequence = mutation.getSequence();
+        batch.add(mutation);
+        if (batch.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Read and apply all mutations up to the end of the log.
+     * @return The number of mutations read.
+     */
+    public int applyAll(MutationLogReader reader) throws IOException {
+        int count = 0;
+        for (Mutation mutation = reader.read(); mutation != null; mutation = reader.read()) {
+            onMutation(mutation);
+            count++;
+        }
+        flush();
+        return count;
+    }
+
+    /**
+     * Apply the current batch.
+     */
+    public void flush() {
+        Map<Integer, Mutation> pending = new HashMap<>();
+        for (Mutation mutation : batch) {
+            switch (mutation.getType()) {
+                case INSERT:
+                case DELETE:
+                case UPSERT:
+                    pending.put(mutation.getKey(), mutation);
+                    break;
+                default:
+                    // range deletes and clears depend on the mutations before them
+                    applySorted(pending);
+                    mutation.applyTo(target);
+            }
+        }
+        applySorted(pending);
+        batch.clear();
+        appliedSequence = lastSequence;
+    }
+
+    /**
+     * Sequence number of the last mutation applied to the target.
+     */
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * Apply the pending mutations in key order. Inserts and upserts both
+     * replace existing values, so they go into the target as one sorted
+     * stream; deletes follow. Mutations of different keys commute, so the
+     * split does not change the result.
+     */
+    private void applySorted(Map<Integer, Mutation> pending) {
+        List<Map.Entry<Integer, String>> upserts = new ArrayList<>();
+        List<Mutation> deletes = new ArrayList<>();
+        pending.keySet().stream().sorted().forEach(key -> {
+            Mutation mutation = pending.get(key);
+            if (mutation.getType() == Mutation.Type.DELETE) {
+                deletes.add(mutation);
+            } else {
+                upserts.add(new AbstractMap.SimpleImmutableEntry<>(key, mutation.getValue()));
+            }
+        });
+        target.upsertSorted(upserts.iterator());
+        for (Mutation delete : deletes) {
+            delete.applyTo(target);
+        }
+        pending.clear();
+    }
+
+}
@@ -0,0 +1,12 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+/**
+ * Receives the mutations of a tree in sequence order, right after they have
+ * been applied. Listeners run on the thread that modified the tree and must
+ * not modify it themselves.
+ */
+public interface MutationListener {
+
+    void onMutation(Mutation mutation);
+
+}
@@ -0,0 +1,97 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads mutations written by a {MutationLogWriter}.
+ */
+public class MutationLogReader implements Closeable {
+
+    private static final Mutation.Type[] TYPES = Mutation.Type.values();
+
+    private final InputStream in;
+
+    private long lastSequence = 0;
+
+    public MutationLogReader(InputStream in) {
+        this.in = new BufferedInputStream(in, 1 << 16);
+    }
+
+    /**
+     * @return The next mutation, or {null} at the end of the stream.
+     * @throws EOFException If the stream ends within a record.
+     */
+    public Mutation read() throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return null;
+        }
+        if (type >= TYPES.length) {
+            throw new IOException("unknown mutation type " + type);
+        }
+        long sequence = lastSequence + readVarLong(in);
+        lastSequence = sequence;
+        int key = unzigzag(readVarLong(in));
+        switch (TYPES[type]) {
+            case INSERT:
+            case UPSERT:
+                long length = readVarLong(in);
+                String value = null;
+                if (length > 0) {
+                    byte[] bytes = new byte[(int) (length - 1)];
+                    readFully(in, bytes);
+                    value = new String(bytes, StandardCharsets.UTF_8);
+                }
+                return TYPES[type] == Mutation.Type.INSERT
+                        ? Mutation.insert(sequence, key, value)
+                        : Mutation.upsert(sequence, key, value);
+            case DELETE:
+                return Mutation.delete(sequence, key);
+            case DELETE_RANGE:
+                return Mutation.deleteRange(sequence, key, (int) (key + readVarLong(in)));
+            default:
+                return Mutation.clear(sequence);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    static int unzigzag(long value) {
+        return (int) (value >>> 1) ^ -(int) (value & 1);
+    }
+
+    static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("log ends within a record");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint in log");
+    }
+
+    static void readFully(InputStream in, byte[] bytes) throws IOException {
+        int read = 0;
+        while (read < bytes.length) {
+            int n = in.read(bytes, read, bytes.length - read);
+            if (n < 0) {
+                throw new EOFException("log ends within a record");
+            }
+            read += n;
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the mutations of a tree to a stream in a compact binary encoding,
+ * e.g. to ship them to replicas through a file or socket.
+ * <p>
+ * Every record starts with a type byte, followed by varints: the distance
+ * of the sequence number to the one of the previous record (almost always
+ * 1), the zigzag encoded key, and then for inserts and upserts the value
+ * length plus one (0 for {null}) and the UTF-8 bytes of the value, for
+ * range deletes the distance from the lower to the upper bound. A typical insert of a short
+ * value takes a few bytes plus the value.
+ * <p>
+ * Records are buffered; call flush to hand them to the stream.
+ */
+public class MutationLogWriter implements MutationListener, Flushable, Closeable {
+
+    private final OutputStream out;
+
+    private long lastSequence = 0;
+
+    public MutationLogWriter(OutputStream out) {
+        this.out = new BufferedOutputStream(out, 1 << 16);
+    }
+
+    /**
+     * Append the mutation to the log.
+     * @throws UncheckedIOException If the stream fails, as listeners cannot
+     * throw checked exceptions.
+     */
+    @Override
+    public void onMutation(Mutation mutation) {
+        try {
+            write(mutation);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void write(Mutation mutation) throws IOException {
+        out.write(mutation.getType().ordinal());
+        writeVarLong(out, mutation.getSequence() - lastSequence);
+        lastSequence = mutation.getSequence();
+        writeVarLong(out, zigzag(mutation.getKey()));
+        switch (mutation.getType()) {
+            case INSERT:
+            case UPSERT:
+                String value = mutation.getValue();
+                if (value == null) {
+                    writeVarLong(out, 0);
+                } else {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    writeVarLong(out, bytes.length + 1L);
+                    out.write(bytes);
+                }
+                break;
+            case DELETE_RANGE:
+                writeVarLong(out, (long) mutation.getToKey() - mutation.getKey());
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    static long zigzag(int value) {
+        return ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL;
+    }
+
+    static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+}
@@ -6,9 +6,16 @@ public abstract class Node {
 
     protected Integer[] keys;
 
+    protected final int capacity;
+
     public Node(Integer[] keys, int capacity) {
         assert keys.length <= capacity;
         this.keys = Arrays.copyOf(keys, capacity);
+        this.capacity = capacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
     }
 
     public Integer[] getKeys() {
@@ -16,11 +23,21 @@ public abstract class Node {
     }
 
     public void setKeys(Integer[] keys) {
-        this.keys = Arrays.copyOf(keys, this.keys.length);;
+        copyInto(keys, this.keys);
     }
 
     public abstract Object[] getPayload();
 
     public abstract void setPayload(Object[] payload);
 
+    /**
+     * Copies source into the existing target array, truncating or padding it
+     * with {null}, so that setters do not allocate a new array every time.
+     */
+    protected static void copyInto(Object[] source, Object[] target) {
+        int length = Math.min(source.length, target.length);
+        System.arraycopy(source, 0, target, 0, length);
+        Arrays.fill(target, length, target.length, null);
+    }
+
 }
@@ -0,0 +1,138 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recycles the nodes that a tree throws away on merges, so that splits can
+ * reuse them together with their key, value and children arrays instead of
+ * allocating new ones.
+ * <p>
+ * Released nodes are kept in bounded per-thread caches, so threads never
+ * contend on the pool. A node released by one thread can only be reused by
+ * the same thread; if its cache is full, the node is left to the garbage
+ * collector.
+ */
+public class NodePool {
+
+    private final int leafCapacity;
+
+    private final int innerCapacity;
+
+    private final int maxNodesPerThread;
+
+    private final ThreadLocal<ArrayDeque<LeafNode>> leafNodes =
+            ThreadLocal.withInitial(ArrayDeque::new);
+
+    private final ThreadLocal<ArrayDeque<InnerNode>> innerNodes =
+            ThreadLocal.withInitial(ArrayDeque::new);
+
+    private final LongAdder created = new LongAdder();
+
+    private final LongAdder reused = new LongAdder();
+
+    public NodePool(int leafCapacity, int innerCapacity, int maxNodesPerThread) {
+        this.leafCapacity = leafCapacity;
+        this.innerCapacity = innerCapacity;
+        this.maxNodesPerThread = maxNodesPerThread;
+    }
+
+    /**
+     * A leaf holding the given entries, recycled if possible.
+     */
+    public LeafNode leafNode(Integer[] keys, String[] values) {
+        LeafNode node = leafNodes.get().poll();
+        if (node == null) {
+            created.increment();
+            return new LeafNode(keys, values, leafCapacity);
+        }
+        reused.increment();
+        node.setKeys(keys);
+        node.setValues(values);
+        return node;
+    }
+
+    /**
+     * An inner node holding the given keys and children, recycled if possible.
+     */
+    public InnerNode innerNode(Integer[] keys, Node[] children) {
+        InnerNode node = innerNodes.get().poll();
+        if (node == null) {
+            created.increment();
+            return new InnerNode(keys, children, innerCapacity);
+        }
+        reused.increment();
+        node.setKeys(keys);
+        node.setChildren(children);
+        return node;
+    }
+
+    /**
+     * Hand a node that is no longer part of any tree back to the pool.
+     * @return {false} if the node was not pooled because the cache of the
+     * current thread is full.
+     */
+    public boolean release(Node node) {
+        if (node instanceof LeafNode) {
+            ArrayDeque<LeafNode> cache = leafNodes.get();
+            if (node.getCapacity() != leafCapacity || cache.size() >= maxNodesPerThread) {
+                return false;
+            }
+            LeafNode leaf = (LeafNode) node;
+            // back to the plain layout, the tree applies its options on reuse
+            leaf.disableFingerprints();
+            leaf.decompressKeys();
+            leaf.decodeValues();
+            // drop the references, so pooled nodes do not keep values alive
+            leaf.setKeys(new Integer[0]);
+            leaf.setValues(new String[0]);
+            cache.push(leaf);
+        } else {
+            ArrayDeque<InnerNode> cache = innerNodes.get();
+            if (node.getCapacity() != innerCapacity || cache.size() >= maxNodesPerThread) {
+                return false;
+            }
+            InnerNode inner = (InnerNode) node;
+            // back to plain routing, the tree applies its options on reuse
+            inner.disableLearnedRouting();
+            inner.setKeys(new Integer[0]);
+            inner.setPayload(new Node[0]);
+            cache.push(inner);
+        }
+        return true;
+    }
+
+    /**
+     * Release all nodes of a subtree that was cut out of a tree, until the
+     * caches of the current thread are full.
+     */
+    public void releaseSubtree(Node node) {
+        if (node instanceof InnerNode) {
+            for (Node child : ((InnerNode) node).getChildren()) {
+                if (child != null) {
+                    if (innerNodes.get().size() >= maxNodesPerThread
+                            && leafNodes.get().size() >= maxNodesPerThread) {
+                        return;
+                    }
+                    releaseSubtree(child);
+                }
+            }
+        }
+        release(node);
+    }
+
+    /**
+     * Number of nodes that had to be allocated.
+     */
+    public long getCreatedCount() {
+        return created.sum();
+    }
+
+    /**
+     * Number of nodes that were served from the pool.
+     */
+    public long getReusedCount() {
+        return reused.sum();
+    }
+
+}
@@ -0,0 +1,85 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Locale;
+
+/**
+ * Latency histograms of the point operations of a tree, kept apart by
+ * operation and by whether the operation modified the structure of the
+ * tree, i.e. split, merged or rebalanced nodes or changed the height. The
+ * long tails of inserts and deletes come from the structural ones, which
+ * the plain ones would otherwise hide.
+ * <p>
+ * The histograms can be shared by several trees, e.g. the partitions of a
+ * {PartitionedBPlusTree}, and exported while they record.
+ */
+public class OperationLatencies {
+
+    public enum Operation {
+        LOOKUP, INSERT, DELETE
+    }
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    static final String METRIC = "bplustree_operation_latency_seconds";
+
+    // by operation, then plain and structural
+    private final LatencyHistogram[][] histograms =
+            new LatencyHistogram[Operation.values().length][2];
+
+    public OperationLatencies() {
+        for (LatencyHistogram[] byStructure : histograms) {
+            byStructure[0] = new LatencyHistogram();
+            byStructure[1] = new LatencyHistogram();
+        }
+    }
+
+    public void record(Operation operation, boolean structural, long nanos) {
+        histograms[operation.ordinal()][structural ? 1 : 0].record(nanos);
+    }
+
+    public LatencyHistogram getHistogram(Operation operation, boolean structural) {
+        return histograms[operation.ordinal()][structural ? 1 : 0];
+    }
+
+    /**
+     * All histograms in the Prometheus text format, as a summary with the
+     * 0.5, 0.99 and 0.999 quantiles plus a gauge for the maximum, in
+     * seconds. Lookups never modify the structure and have no structural
+     * series.
+     */
+    public String exportText() {
+        StringBuilder text = new StringBuilder();
+        text.append("# HELP ").append(METRIC).append(" Latency of tree operations.\n");
+        text.append("# TYPE ").append(METRIC).append(" summary\n");
+        StringBuilder maxima = new StringBuilder();
+        maxima.append("# HELP ").append(METRIC).append("_max Largest latency so far.\n");
+        maxima.append("# TYPE ").append(METRIC).append("_max gauge\n");
+        for (Operation operation : Operation.values()) {
+            for (boolean structural : new boolean[] {false, true}) {
+                if (operation == Operation.LOOKUP && structural) {
+                    continue;
+                }
+                LatencyHistogram.Summary summary = getHistogram(operation, structural).summary();
+                String labels = "operation=\"" + operation.name().toLowerCase(Locale.ROOT)
+                        + "\",structural=\"" + structural + "\"";
+                for (double quantile : QUANTILES) {
+                    text.append(METRIC).append('{').append(labels)
+                            .append(",quantile=\"").append(quantile).append("\"} ")
+                            .append(seconds(summary.getPercentile(100 * quantile))).append('\n');
+                }
+                text.append(METRIC).append("_sum{").append(labels).append("} ")
+                        .append(seconds(summary.getSum())).append('\n');
+                text.append(METRIC).append("_count{").append(labels).append("} ")
+                        .append(summary.getCount()).append('\n');
+                maxima.append(METRIC).append("_max{").append(labels).append("} ")
+                        .append(seconds(summary.getMax())).append('\n');
+            }
+        }
+        return text.append(maxima).toString();
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+}
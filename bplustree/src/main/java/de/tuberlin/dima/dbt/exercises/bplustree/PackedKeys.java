@@ -0,0 +1,130 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Arrays;
+
+/**
+ * Frame-of-reference encoding of the sorted keys of a leaf.
+ * <p>
+ * The smallest key is stored as base, every key as its distance to the base,
+ * bit-packed with the width of the largest distance. Dense keys such as IDs
+ * only need a few bits each, instead of a reference plus a boxed Integer.
+ * The encoding is immutable; changing the keys means encoding them again.
+ */
+public class PackedKeys {
+
+    private final int base;
+
+    private final int width;
+
+    private final int size;
+
+    private final long[] words;
+
+    private PackedKeys(int base, int width, int size, long[] words) {
+        this.base = base;
+        this.width = width;
+        this.size = size;
+        this.words = words;
+    }
+
+    /**
+     * Encode the keys up to the first {null}. The keys have to be sorted.
+     */
+    public static PackedKeys encode(Integer[] keys) {
+        int size = 0;
+        while (size < keys.length && keys[size] != null) {
+            size++;
+        }
+        if (size == 0) {
+            return new PackedKeys(0, 0, 0, new long[0]);
+        }
+        int base = keys[0];
+        long range = (long) keys[size - 1] - base;
+        int width = 64 - Long.numberOfLeadingZeros(range);
+        long[] words = new long[(int) (((long) size * width + 63) / 64)];
+        for (int i = 0; i < size && width > 0; i++) {
+            long delta = (long) keys[i] - base;
+            long bit = (long) i * width;
+            int word = (int) (bit >>> 6);
+            int offset = (int) (bit & 63);
+            words[word] |= delta << offset;
+            if (offset + width > 64) {
+                words[word + 1] |= delta >>> (64 - offset);
+            }
+        }
+        return new PackedKeys(base, width, size, words);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Number of bits used per key.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    public int get(int i) {
+        return (int) (base + delta(i));
+    }
+
+    /**
+     * Position of the first occurrence of the key, found by a binary search
+     * over the packed distances.
+     * @return The position, or -1 if the key is not contained.
+     */
+    public int indexOf(int key) {
+        long target = (long) key - base;
+        if (size == 0 || target < 0 || target > mask()) {
+            return -1;
+        }
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (delta(mid) < target) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low < size && delta(low) == target ? low : -1;
+    }
+
+    /**
+     * Decode the keys into an array of the given length, padded with
+     * {null}.
+     */
+    public Integer[] decode(int length) {
+        Integer[] keys = new Integer[length];
+        for (int i = 0; i < size; i++) {
+            keys[i] = get(i);
+        }
+        return keys;
+    }
+
+    private long delta(int i) {
+        if (width == 0) {
+            return 0;
+        }
+        long bit = (long) i * width;
+        int word = (int) (bit >>> 6);
+        int offset = (int) (bit & 63);
+        long value = words[word] >>> offset;
+        if (offset + width > 64) {
+            value |= words[word + 1] << (64 - offset);
+        }
+        return value & mask();
+    }
+
+    private long mask() {
+        return (1L << width) - 1;
+    }
+
+    public String toString() {
+        return Arrays.toString(decode(size));
+    }
+
+}
@@ -0,0 +1,441 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * A B+ tree whose key space is split into ranges, each stored in its own
+ * {BPlusTree} and owned by its own thread.
+ * <p>
+ * A router sends every operation to the thread of the partition whose range
+ * holds the key, so writes to different partitions run in parallel and no
+ * partition needs locking. Scans across partitions collect the entries of
+ * all partitions in parallel and concatenate them in key order.
+ * <p>
+ * Partitions split at their median key when they hold more than
+ * maxPartitionSize keys, or when they receive a large share of the recent
+ * operations, up to maxPartitions partitions. A split moves the upper half
+ * of a partition into a new partition with its own thread; operations that
+ * were routed to the old partition before the split are forwarded.
+ * Operations on a key run in the order they were submitted, also across a
+ * split: the new partition only starts once the old one has run the
+ * operations that were queued there before the split.
+ */
+public class PartitionedBPlusTree implements KeyValueStore, Closeable {
+
+    public static final int DEFAULT_MAX_PARTITION_SIZE = 1 << 20;
+
+    /**
+     * Number of own operations after which a partition checks whether it is
+     * hot.
+     */
+    static final int HOT_CHECK_INTERVAL = 1 << 12;
+
+    /**
+     * A partition is hot if it received more than this multiple of its fair
+     * share of the operations since its last check.
+     */
+    static final double HOT_FACTOR = 2.0;
+
+    private final int leafCapacity;
+
+    private final int innerCapacity;
+
+    private final int maxPartitionSize;
+
+    private final int maxPartitions;
+
+    // sorted by lower bound, replaced as a whole on splits
+    private volatile Partition[] partitions;
+
+    // held for reading while an operation is routed and queued, and for
+    // writing while a split publishes new partitions
+    private final ReadWriteLock routing = new ReentrantReadWriteLock();
+
+    private final AtomicLong operations = new AtomicLong();
+
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * Split the key space into the given number of equally wide ranges.
+     */
+    public PartitionedBPlusTree(int partitions, int leafCapacity, int innerCapacity) {
+        this(evenBoundaries(partitions), leafCapacity, innerCapacity,
+             DEFAULT_MAX_PARTITION_SIZE, 4 * partitions);
+    }
+
+    /**
+     * @param boundaries Ascending lower bounds of all partitions but the
+     * first, which starts at {Integer.MIN_VALUE}.
+     */
+    public PartitionedBPlusTree(int[] boundaries, int leafCapacity, int innerCapacity,
+                                int maxPartitionSize, int maxPartitions) {
+        this.leafCapacity = leafCapacity;
+        this.innerCapacity = innerCapacity;
+        this.maxPartitionSize = maxPartitionSize;
+        this.maxPartitions = maxPartitions;
+        Partition[] initial = new Partition[boundaries.length + 1];
+        for (int i = 0; i < initial.length; i++) {
+            long lower = i == 0 ? Integer.MIN_VALUE : boundaries[i - 1];
+            long upper = i == boundaries.length ? Integer.MAX_VALUE + 1L : boundaries[i];
+            if (upper <= lower) {
+                throw new IllegalArgumentException("boundaries have to be strictly increasing");
+            }
+            initial[i] = new Partition(lower, upper, new BPlusTree(leafCapacity, innerCapacity));
+        }
+        this.partitions = initial;
+    }
+
+    private static int[] evenBoundaries(int partitions) {
+        int[] boundaries = new int[partitions - 1];
+        long width = (1L << 32) / partitions;
+        for (int i = 0; i < boundaries.length; i++) {
+            boundaries[i] = (int) (Integer.MIN_VALUE + (i + 1) * width);
+        }
+        return boundaries;
+    }
+
+    ///// Point operations
+
+    public CompletableFuture<String> lookupAsync(int key) {
+        return submit(key, tree -> tree.lookup(key), false);
+    }
+
+    public CompletableFuture<Void> insertAsync(int key, String value) {
+        return submit(key, tree -> {
+            tree.insert(key, value);
+            return null;
+        }, true);
+    }
+
+    public CompletableFuture<String> deleteAsync(int key) {
+        return submit(key, tree -> tree.delete(key), true);
+    }
+
+    @Override
+    public String lookup(Integer key) {
+        return await(lookupAsync(key));
+    }
+
+    @Override
+    public void insert(int key, String value) {
+        await(insertAsync(key, value));
+    }
+
+    @Override
+    public String delete(Integer key) {
+        return await(deleteAsync(key));
+    }
+
+    ///// Scans
+
+    /**
+     * Collect the entries with keys between from and to, both inclusive, in
+     * ascending key order. Partitions are scanned in parallel.
+     */
+    public CompletableFuture<List<Map.Entry<Integer, String>>> scanAsync(int from, int to) {
+        if (from > to) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+        Partition[] current = partitions;
+        List<CompletableFuture<Segment>> segments = new ArrayList<>();
+        for (int i = route(current, from); i < current.length && current[i].lower <= to; i++) {
+            Partition partition = current[i];
+            segments.add(CompletableFuture.supplyAsync(() -> partition.scan(from, to),
+                                                       partition.executor));
+        }
+        return CompletableFuture.allOf(segments.toArray(new CompletableFuture<?>[0]))
+                .thenCompose(ignored -> concatenate(segments, from, to));
+    }
+
+    public List<Map.Entry<Integer, String>> scan(int from, int to) {
+        return await(scanAsync(from, to));
+    }
+
+    /**
+     * Concatenate the scanned segments. Partitions may have been split while
+     * the scan was planned; the key ranges they gave up in the meantime are
+     * scanned again, without blocking the thread of any partition.
+     */
+    private CompletableFuture<List<Map.Entry<Integer, String>>> concatenate(
+            List<CompletableFuture<Segment>> segments, long from, long to) {
+        List<CompletableFuture<List<Map.Entry<Integer, String>>>> parts = new ArrayList<>();
+        long next = from;
+        for (CompletableFuture<Segment> future : segments) {
+            Segment segment = future.join();
+            if (segment.from > next) {
+                parts.add(scanAsync((int) next, (int) (segment.from - 1)));
+            }
+            parts.add(CompletableFuture.completedFuture(segment.entries));
+            next = Math.max(next, segment.to + 1);
+        }
+        if (next <= to) {
+            parts.add(scanAsync((int) next, (int) to));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> {
+                    List<Map.Entry<Integer, String>> entries = new ArrayList<>();
+                    for (CompletableFuture<List<Map.Entry<Integer, String>>> part : parts) {
+                        entries.addAll(part.join());
+                    }
+                    return entries;
+                });
+    }
+
+    /**
+     * Number of keys in all partitions.
+     */
+    public int size() {
+        int size = 0;
+        for (Partition partition : partitions) {
+            size += await(CompletableFuture.supplyAsync(partition.tree::size, partition.executor));
+        }
+        return size;
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    /**
+     * The lower bounds of all partitions but the first.
+     */
+    public int[] getBoundaries() {
+        Partition[] current = partitions;
+        int[] boundaries = new int[current.length - 1];
+        for (int i = 1; i < current.length; i++) {
+            boundaries[i - 1] = (int) current[i].lower;
+        }
+        return boundaries;
+    }
+
+    /**
+     * Stop the threads of all partitions after the queued operations.
+     */
+    @Override
+    public void close() {
+        for (Partition partition : partitions) {
+            partition.executor.shutdown();
+        }
+        try {
+            for (Partition partition : partitions) {
+                partition.executor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    ///// Routing
+
+    /**
+     * Run the operation on the thread of the partition that owns the key. If
+     * the partition gave up the key in a split while the operation was
+     * queued, the operation runs on the partition that took the key over.
+     */
+    private <T> CompletableFuture<T> submit(int key, Function<BPlusTree, T> operation,
+                                            boolean write) {
+        operations.incrementAndGet();
+        routing.readLock().lock();
+        try {
+            Partition[] current = partitions;
+            Partition partition = current[route(current, key)];
+            return CompletableFuture.supplyAsync(() -> partition.run(key, operation, write),
+                                                 partition.executor)
+                    .thenCompose(Function.identity());
+        } finally {
+            routing.readLock().unlock();
+        }
+    }
+
+    /**
+     * Index of the partition whose range holds the key.
+     */
+    private static int route(Partition[] partitions, long key) {
+        int low = 0;
+        int high = partitions.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (partitions[mid].lower <= key) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Entries of one partition, together with the key range they cover.
+     */
+    private static class Segment {
+
+        final long from;
+
+        final long to;
+
+        final List<Map.Entry<Integer, String>> entries;
+
+        Segment(long from, long to, List<Map.Entry<Integer, String>> entries) {
+            this.from = from;
+            this.to = to;
+            this.entries = entries;
+        }
+
+    }
+
+    private class Partition {
+
+        // inclusive, never changes
+        final long lower;
+
+        // exclusive, shrinks when the partition is split
+        volatile long upper;
+
+        final BPlusTree tree;
+
+        final ExecutorService executor;
+
+        // only used by the thread of the partition
+        private int operationsSinceCheck = 0;
+
+        private long operationsAtCheck = operations.get();
+
+        // partition split off from this one, while the operations that were
+        // queued here before the split are still running
+        private Partition heir;
+
+        Partition(long lower, long upper, BPlusTree tree) {
+            this.lower = lower;
+            this.upper = upper;
+            this.tree = tree;
+            String name = "partition-" + nextId.getAndIncrement();
+            this.executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        boolean owns(long key) {
+            return key >= lower && key < upper;
+        }
+
+        <T> CompletableFuture<T> run(int key, Function<BPlusTree, T> operation, boolean write) {
+            if (owns(key)) {
+                T result = operation.apply(tree);
+                afterOperation(write);
+                return CompletableFuture.completedFuture(result);
+            }
+            if (heir != null && heir.owns(key)) {
+                // the heir waits for this handoff, so its tree is ours until
+                // then and the operation runs ahead of those queued there
+                return CompletableFuture.completedFuture(operation.apply(heir.tree));
+            }
+            return submit(key, operation, write);
+        }
+
+        Segment scan(long from, long to) {
+            long low = Math.max(from, lower);
+            long high = Math.min(to, upper - 1);
+            List<Map.Entry<Integer, String>> entries = new ArrayList<>();
+            if (low <= high) {
+                Iterator<Map.Entry<Integer, String>> it = tree.scan((int) low, (int) high);
+                while (it.hasNext()) {
+                    entries.add(it.next());
+                }
+            }
+            return new Segment(low, high, entries);
+        }
+
+        void afterOperation(boolean write) {
+            boolean split = write && tree.size() > maxPartitionSize;
+            if (++operationsSinceCheck >= HOT_CHECK_INTERVAL) {
+                long total = operations.get();
+                double fairShare = (double) (total - operationsAtCheck) / partitions.length;
+                split |= operationsSinceCheck > HOT_FACTOR * fairShare;
+                operationsSinceCheck = 0;
+                operationsAtCheck = total;
+            }
+            if (split && heir == null && partitions.length < maxPartitions
+                    && tree.size() >= 2 * leafCapacity) {
+                split();
+            }
+        }
+
+        /**
+         * Move the upper half of this partition into a new partition. Runs on
+         * the thread of this partition, so no other operation sees the move
+         * half done.
+         * <p>
+         * The new partition first waits for a handoff, which this partition
+         * completes once it has run all operations that were routed to it
+         * before the split. Until then, it runs those for the upper half on
+         * the new tree itself, so they keep their order with respect to
+         * operations routed to the new partition directly.
+         */
+        private void split() {
+            int median = tree.select(tree.size() / 2);
+            BulkLoader loader = tree.bulkLoader(1.0);
+            Iterator<Map.Entry<Integer, String>> it = tree.scan(median, (int) (upper - 1));
+            while (it.hasNext()) {
+                Map.Entry<Integer, String> entry = it.next();
+                loader.add(entry.getKey(), entry.getValue());
+            }
+            BPlusTree upperTree = new BPlusTree(leafCapacity, innerCapacity);
+            upperTree.replaceRoot(loader.finish());
+            tree.deleteRange(median, (int) (upper - 1));
+
+            Partition upperPartition = new Partition(median, upper, upperTree);
+            CompletableFuture<Void> handoff = new CompletableFuture<>();
+            upperPartition.executor.execute(handoff::join);
+            heir = upperPartition;
+            routing.writeLock().lock();
+            try {
+                Partition[] current = partitions;
+                int index = Arrays.asList(current).indexOf(this);
+                Partition[] next = new Partition[current.length + 1];
+                System.arraycopy(current, 0, next, 0, index + 1);
+                next[index + 1] = upperPartition;
+                System.arraycopy(current, index + 1, next, index + 2, current.length - index - 1);
+                partitions = next;
+                // queued behind every operation that was routed here before
+                executor.execute(() -> {
+                    heir = null;
+                    handoff.complete(null);
+                });
+            } finally {
+                routing.writeLock().unlock();
+            }
+            // only now, operations queued here for the upper half go to the heir
+            upper = median;
+        }
+
+    }
+
+}
@@ -0,0 +1,99 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Random;
+
+/**
+ * Compares lookups routed through the learned models of the inner nodes
+ * with the classic search of the separator keys, on a bulk loaded tree.
+ * <p>
+ * Keys are either evenly spread IDs, ascending in random steps of 1 to 16,
+ * or clustered: dense runs separated by occasional large gaps, where a
+ * line per node predicts less well and more nodes fall back to the search. Both variants run the same
+ * random lookups of existing keys, alternating several times to even out
+ * JIT and cache effects.
+ * <p>
+ * Usage: {RoutingBenchmark [keys] [inner capacity] [lookups]
+ * [uniform|clustered]}
+ */
+public class RoutingBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 4_000_000;
+        int innerCapacity = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int lookups = args.length > 2 ? Integer.parseInt(args[2]) : 4_000_000;
+        boolean clustered = args.length > 3 && args[3].equals("clustered");
+
+        Random random = new Random(42);
+        int[] keys = new int[count];
+        int key = 0;
+        for (int i = 0; i < count; i++) {
+            if (clustered) {
+                key += random.nextInt(20) == 0 ? 1 + random.nextInt(5000) : 1;
+            } else {
+                key += 1 + random.nextInt(16);
+            }
+            keys[i] = key;
+        }
+        BPlusTree tree = new BPlusTree(64, innerCapacity);
+        BulkLoader loader = tree.bulkLoader(1.0);
+        for (int i = 0; i < count; i++) {
+            loader.add(keys[i], "");
+        }
+        tree.replaceRoot(loader.finish());
+
+        int[] probes = new int[lookups];
+        for (int i = 0; i < lookups; i++) {
+            probes[i] = keys[random.nextInt(count)];
+        }
+
+        tree.enableLearnedRouting();
+        System.out.printf("%d keys (%s), inner capacity %d, %.1f%% of inner nodes use a model%n",
+                          count, clustered ? "clustered" : "uniform", innerCapacity,
+                          100.0 * modelShare(tree.rootNode()));
+        for (int round = 0; round < ROUNDS; round++) {
+            tree.disableLearnedRouting();
+            double classic = nanosPerLookup(tree, probes);
+            tree.enableLearnedRouting();
+            double learned = nanosPerLookup(tree, probes);
+            System.out.printf("round %d: classic %.1f ns/lookup, learned %.1f ns/lookup%n",
+                              round, classic, learned);
+        }
+    }
+
+    private static double nanosPerLookup(BPlusTree tree, int[] probes) {
+        int found = 0;
+        long start = System.nanoTime();
+        for (int key : probes) {
+            if (tree.lookup(key) != null) {
+                found++;
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        if (found != probes.length) {
+            throw new IllegalStateException("lookups missed " + (probes.length - found) + " keys");
+        }
+        return (double) nanos / probes.length;
+    }
+
+    private static double modelShare(Node root) {
+        int[] nodes = new int[2];
+        countModels(root, nodes);
+        return nodes[0] == 0 ? 0 : (double) nodes[1] / nodes[0];
+    }
+
+    private static void countModels(Node node, int[] nodes) {
+        if (node instanceof InnerNode) {
+            InnerNode innerNode = (InnerNode) node;
+            nodes[0]++;
+            if (innerNode.usesLearnedRouting()) {
+                nodes[1]++;
+            }
+            for (Node child : innerNode.getChildren()) {
+                countModels(child, nodes);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,383 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary snapshot of the entries of a tree, stored column by column:
+ * <p>
+ * {pre}
+ * header:  magic, version, leaf capacity, inner capacity, count,
+ *          dictionary size (ints), filter false positive rate (double)
+ * keys:    int[count], ascending
+ * ends:    long[count], end offset of every value in the blob
+ * nulls:   byte[(count + 7) / 8], bit i is set if value i is {null}
+ * blob:    the values, UTF-8 encoded, without separators
+ * dict:    the dictionary values in code order, each as its UTF-8 length
+ *          (int) and bytes
+ * {pre}
+ * <p>
+ * The size of every column follows from the header, so all columns are
+ * written in a single pass over the leaves, each through its own buffer at
+ * its own file position. The dictionary follows the end of the blob. Inner
+ * nodes are not stored; reading bulk loads the entries and rebuilds them
+ * from the leaves.
+ * <p>
+ * The dictionary size is -1 for trees without a value dictionary. Loading
+ * restores the dictionary with its codes and encodes the loaded leaves with
+ * it. A false positive rate of 0 stands for no
+ * membership filter; otherwise the filter is rebuilt from the loaded keys.
+ * The values in the blob stay plain strings, so readers such as
+ * {SnapshotScanner} do not need the dictionary. The other tree options
+ * (cache, compression, ...) are not part of the snapshot.
+ */
+class Snapshot {
+
+    static final int MAGIC = 0x42505453; // "BPTS"
+
+    static final int VERSION = 2;
+
+    static final int HEADER_SIZE = 6 * Integer.BYTES + Double.BYTES;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Positions of the columns of a snapshot with the given number of
+     * entries.
+     */
+    static final class Layout {
+
+        final int count;
+
+        final long keys;
+
+        final long ends;
+
+        final long nulls;
+
+        final long blob;
+
+        Layout(int count) {
+            this.count = count;
+            keys = HEADER_SIZE;
+            ends = keys + (long) count * Integer.BYTES;
+            nulls = ends + (long) count * Long.BYTES;
+            blob = nulls + (count + 7) / 8;
+        }
+
+    }
+
+    static void write(BPlusTree tree, Path path) throws IOException {
+        Layout layout = new Layout(tree.size());
+        ValueDictionary dictionary = tree.getValueDictionary();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Column header = new Column(channel, 0, HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(tree.getLeafCapacity());
+            header.putInt(tree.getInnerCapacity());
+            header.putInt(layout.count);
+            header.putInt(dictionary == null ? -1 : dictionary.size());
+            header.putDouble(tree.filterFalsePositiveRate());
+            header.flush();
+
+            Column keys = new Column(channel, layout.keys, BUFFER_SIZE);
+            Column ends = new Column(channel, layout.ends, BUFFER_SIZE);
+            Column nulls = new Column(channel, layout.nulls, BUFFER_SIZE);
+            Column blob = new Column(channel, layout.blob, BUFFER_SIZE);
+            long end = 0;
+            int nullBits = 0;
+            int written = 0;
+            for (LeafIterator leaves = new LeafIterator(tree.rootNode()); leaves.hasNext(); ) {
+                LeafNode leaf = leaves.next();
+                Integer[] leafKeys = leaf.getKeys();
+                int size = leaf.size();
+                for (int i = 0; i < size; i++) {
+                    String value = leaf.getValue(i);
+                    keys.putInt(leafKeys[i]);
+                    if (value == null) {
+                        nullBits |= 1 << (written & 7);
+                    } else {
+                        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                        blob.put(bytes);
+                        end += bytes.length;
+                    }
+                    ends.putLong(end);
+                    written++;
+                    if ((written & 7) == 0) {
+                        nulls.put((byte) nullBits);
+                        nullBits = 0;
+                    }
+                }
+            }
+            if ((written & 7) != 0) {
+                nulls.put((byte) nullBits);
+            }
+            keys.flush();
+            ends.flush();
+            nulls.flush();
+            blob.flush();
+
+            if (dictionary != null) {
+                Column dict = new Column(channel, layout.blob + end, BUFFER_SIZE);
+                for (String value : dictionary.getValues()) {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    dict.putInt(bytes.length);
+                    dict.put(bytes);
+                }
+                dict.flush();
+            }
+        }
+    }
+
+    static BPlusTree read(Path path, double fillFactor) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Column header = new Column(channel, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(path + " is not a tree snapshot");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported snapshot version " + version);
+            }
+            int leafCapacity = header.getInt();
+            int innerCapacity = header.getInt();
+            Layout layout = new Layout(header.getInt());
+            int dictionarySize = header.getInt();
+            double falsePositiveRate = header.getDouble();
+
+            BPlusTree tree = new BPlusTree(leafCapacity, innerCapacity);
+            if (dictionarySize >= 0) {
+                // the loader then encodes the new leaves with the stored codes
+                tree.enableValueDictionary(readDictionary(channel, layout, dictionarySize));
+            }
+            if (falsePositiveRate > 0) {
+                // filled from the loaded leaves when the root is swapped in
+                tree.enableMembershipFilter(1, falsePositiveRate);
+            }
+            BulkLoader loader = tree.bulkLoader(fillFactor);
+            Column keys = new Column(channel, layout.keys, BUFFER_SIZE);
+            Column ends = new Column(channel, layout.ends, BUFFER_SIZE);
+            Column nulls = new Column(channel, layout.nulls, BUFFER_SIZE);
+            Column blob = new Column(channel, layout.blob, BUFFER_SIZE);
+            long start = 0;
+            int nullBits = 0;
+            for (int i = 0; i < layout.count; i++) {
+                if ((i & 7) == 0) {
+                    nullBits = nulls.get();
+                }
+                int key = keys.getInt();
+                long end = ends.getLong();
+                String value = (nullBits & 1 << (i & 7)) != 0
+                        ? null : blob.getString((int) (end - start));
+                start = end;
+                loader.add(key, value);
+            }
+            tree.replaceRoot(loader.finish());
+            return tree;
+        }
+    }
+
+    private static ValueDictionary readDictionary(FileChannel channel, Layout layout, int size)
+            throws IOException {
+        long blobSize = 0;
+        if (layout.count > 0) {
+            // the end offset of the last value is the size of the blob
+            Column lastEnd = new Column(channel, layout.ends + (layout.count - 1L) * Long.BYTES,
+                                        Long.BYTES);
+            blobSize = lastEnd.getLong();
+        }
+        Column dict = new Column(channel, layout.blob + blobSize, BUFFER_SIZE);
+        List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(dict.getString(dict.getInt()));
+        }
+        return new ValueDictionary(values);
+    }
+
+    /**
+     * A buffered sequential reader or writer for one column, starting at the
+     * given file position.
+     */
+    static final class Column {
+
+        private final FileChannel channel;
+
+        private ByteBuffer buffer;
+
+        // file position the buffer is next written to or read from
+        private long position;
+
+        // whether the buffer holds data read from the file
+        private boolean reading = false;
+
+        Column(FileChannel channel, long position, int bufferSize) {
+            this.channel = channel;
+            this.position = position;
+            this.buffer = ByteBuffer.allocate(bufferSize);
+        }
+
+        void putInt(int value) throws IOException {
+            ensureWritable(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensureWritable(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            ensureWritable(Double.BYTES);
+            buffer.putDouble(value);
+        }
+
+        void put(byte value) throws IOException {
+            ensureWritable(1);
+            buffer.put(value);
+        }
+
+        void put(byte[] bytes) throws IOException {
+            if (bytes.length > buffer.capacity()) {
+                flush();
+                ByteBuffer large = ByteBuffer.wrap(bytes);
+                writeFully(large);
+                return;
+            }
+            ensureWritable(bytes.length);
+            buffer.put(bytes);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        int getInt() throws IOException {
+            ensureReadable(Integer.BYTES);
+            return buffer.getInt();
+        }
+
+        long getLong() throws IOException {
+            ensureReadable(Long.BYTES);
+            return buffer.getLong();
+        }
+
+        double getDouble() throws IOException {
+            ensureReadable(Double.BYTES);
+            return buffer.getDouble();
+        }
+
+        byte get() throws IOException {
+            ensureReadable(1);
+            return buffer.get();
+        }
+
+        String getString(int length) throws IOException {
+            ensureReadable(0);
+            if (length > buffer.capacity()) {
+                // grow the buffer for values larger than it
+                ByteBuffer larger = ByteBuffer.allocate(length);
+                larger.put(buffer);
+                larger.flip();
+                buffer = larger;
+            }
+            ensureReadable(length);
+            String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                                      length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+
+        private void ensureWritable(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void writeFully(ByteBuffer source) throws IOException {
+            while (source.hasRemaining()) {
+                position += channel.write(source, position);
+            }
+        }
+
+        private void ensureReadable(int bytes) throws IOException {
+            if (!reading) {
+                reading = true;
+                buffer.limit(0);
+            }
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("snapshot is truncated");
+                }
+                position += read;
+            }
+            buffer.flip();
+        }
+
+    }
+
+    /**
+     * Visits the leaves of a tree from left to right, keeping a stack of the
+     * inner nodes above the current leaf.
+     */
+    static final class LeafIterator {
+
+        private final ArrayDeque<InnerNode> parents = new ArrayDeque<>();
+
+        private final ArrayDeque<Integer> nextChild = new ArrayDeque<>();
+
+        private LeafNode next;
+
+        LeafIterator(Node root) {
+            next = descend(root);
+        }
+
+        boolean hasNext() {
+            return next != null;
+        }
+
+        LeafNode next() {
+            LeafNode leaf = next;
+            next = null;
+            while (!parents.isEmpty()) {
+                InnerNode parent = parents.peek();
+                int child = nextChild.pop();
+                Node[] children = parent.getChildren();
+                if (child < children.length && children[child] != null) {
+                    nextChild.push(child + 1);
+                    next = descend(children[child]);
+                    break;
+                }
+                parents.pop();
+            }
+            return leaf;
+        }
+
+        private LeafNode descend(Node node) {
+            while (node instanceof InnerNode) {
+                parents.push((InnerNode) node);
+                nextChild.push(1);
+                node = ((InnerNode) node).getChildren()[0];
+            }
+            return (LeafNode) node;
+        }
+
+    }
+
+}
@@ -0,0 +1,324 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Range scan over a snapshot file (see {Snapshot}) that reads ahead.
+ * <p>
+ * The entries of the range are read in pages of a fixed number of entries.
+ * Whenever the scan enters a new page, the following pages are requested
+ * asynchronously through an {AsynchronousFileChannel}, so that the disk
+ * works on them while the scan consumes the current one. The read-ahead
+ * window adapts to the scan: it is the number of pages the scan consumes
+ * in the time one page takes to load, and it doubles whenever the scan has
+ * to wait for a page. A fast scan thus keeps enough reads in flight to run
+ * at disk bandwidth, while a slow one does not read far ahead of itself.
+ */
+public class SnapshotScanner implements Iterator<Map.Entry<Integer, String>>, Closeable {
+
+    public static final int DEFAULT_PAGE_ENTRIES = 4096;
+
+    public static final int DEFAULT_MAX_WINDOW = 16;
+
+    // weight of a new measurement in the moving averages
+    private static final double SMOOTHING = 0.25;
+
+    private final AsynchronousFileChannel channel;
+
+    private final Snapshot.Layout layout;
+
+    private final int pageEntries;
+
+    private final int maxWindow;
+
+    // index of the first entry after the range, and of the next page to read
+    private final int end;
+
+    private int nextPageStart;
+
+    private final ArrayDeque<CompletableFuture<Page>> inFlight = new ArrayDeque<>();
+
+    private Page page;
+
+    private int pos;
+
+    private int window = 1;
+
+    // moving averages of the time to load a page and to consume one
+    private double loadNanos = 0;
+
+    private double consumeNanos = 0;
+
+    private long pageEnteredAt;
+
+    private int pagesRead = 0;
+
+    private int stalls = 0;
+
+    public SnapshotScanner(Path path, int from, int to) throws IOException {
+        this(path, from, to, DEFAULT_PAGE_ENTRIES, DEFAULT_MAX_WINDOW);
+    }
+
+    /**
+     * Scan the entries with keys between from and to, both inclusive.
+     * @param pageEntries Number of entries read per request.
+     * @param maxWindow Maximum number of pages read ahead.
+     */
+    public SnapshotScanner(Path path, int from, int to, int pageEntries, int maxWindow)
+            throws IOException {
+        this.channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+        this.pageEntries = pageEntries;
+        this.maxWindow = maxWindow;
+        try {
+            ByteBuffer header = await(read(0, Snapshot.HEADER_SIZE));
+            if (header.getInt() != Snapshot.MAGIC) {
+                throw new IOException(path + " is not a tree snapshot");
+            }
+            int version = header.getInt();
+            if (version != Snapshot.VERSION) {
+                throw new IOException("unsupported snapshot version " + version);
+            }
+            header.getInt();
+            header.getInt();
+            layout = new Snapshot.Layout(header.getInt());
+            // the key column is sorted, so both ends of the range are binary searched
+            nextPageStart = from > to ? 0 : lowerBound(from);
+            end = from > to ? 0 : lowerBound(to + 1L);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        pageEnteredAt = System.nanoTime();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (page != null && pos < page.keys.length) {
+            return true;
+        }
+        if (nextPageStart >= end && inFlight.isEmpty()) {
+            return false;
+        }
+        enterNextPage();
+        return pos < page.keys.length;
+    }
+
+    @Override
+    public Map.Entry<Integer, String> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Map.Entry<Integer, String> entry =
+                new AbstractMap.SimpleImmutableEntry<>(page.keys[pos], page.values[pos]);
+        pos++;
+        return entry;
+    }
+
+    /**
+     * Current number of pages read ahead.
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    public int getPagesRead() {
+        return pagesRead;
+    }
+
+    /**
+     * Number of times the scan had to wait for a page.
+     */
+    public int getStalls() {
+        return stalls;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void enterNextPage() {
+        long now = System.nanoTime();
+        if (page != null) {
+            consumeNanos = average(consumeNanos, now - pageEnteredAt);
+        }
+        fillWindow();
+        CompletableFuture<Page> next = inFlight.poll();
+        boolean stalled = !next.isDone();
+        page = join(next);
+        pos = 0;
+        pagesRead++;
+        loadNanos = average(loadNanos, page.loadNanos);
+        // pages consumed while one page loads, at least one
+        int needed = consumeNanos > 0 ? (int) Math.ceil(loadNanos / consumeNanos) : window;
+        if (stalled) {
+            stalls++;
+            window = Math.max(2 * window, needed);
+        } else {
+            // shrink slowly, a single fast page should not drain the window
+            window = Math.max(needed, window - 1);
+        }
+        window = Math.max(1, Math.min(maxWindow, window));
+        fillWindow();
+        pageEnteredAt = System.nanoTime();
+    }
+
+    private static double average(double average, long sample) {
+        return average == 0 ? sample : (1 - SMOOTHING) * average + SMOOTHING * sample;
+    }
+
+    private void fillWindow() {
+        while (inFlight.size() < window + (page == null ? 1 : 0) && nextPageStart < end) {
+            int start = nextPageStart;
+            int stop = (int) Math.min(end, (long) start + pageEntries);
+            inFlight.add(loadPage(start, stop));
+            nextPageStart = stop;
+        }
+    }
+
+    ///// Reading
+
+    private static final class Page {
+
+        final int[] keys;
+
+        final String[] values;
+
+        final long loadNanos;
+
+        Page(int[] keys, String[] values, long loadNanos) {
+            this.keys = keys;
+            this.values = values;
+            this.loadNanos = loadNanos;
+        }
+
+    }
+
+    /**
+     * Read entries [start, stop): first their keys, value offsets and null
+     * bits, then the part of the blob they point to.
+     */
+    private CompletableFuture<Page> loadPage(int start, int stop) {
+        long issued = System.nanoTime();
+        int count = stop - start;
+        // the end of the previous value is where the first value starts
+        int firstEnd = start == 0 ? 0 : start - 1;
+        CompletableFuture<ByteBuffer> keys = read(layout.keys + (long) start * Integer.BYTES,
+                                                  count * Integer.BYTES);
+        CompletableFuture<ByteBuffer> ends = read(layout.ends + (long) firstEnd * Long.BYTES,
+                                                  (stop - firstEnd) * Long.BYTES);
+        CompletableFuture<ByteBuffer> nulls = read(layout.nulls + (start >> 3),
+                                                   ((stop - 1) >> 3) - (start >> 3) + 1);
+        return CompletableFuture.allOf(keys, ends, nulls).thenCompose(ignored -> {
+            long[] offsets = new long[count + 1];
+            ByteBuffer endBuffer = ends.join();
+            offsets[0] = start == 0 ? 0 : endBuffer.getLong();
+            for (int i = 1; i <= count; i++) {
+                offsets[i] = endBuffer.getLong();
+            }
+            int blobSize = (int) (offsets[count] - offsets[0]);
+            return read(layout.blob + offsets[0], blobSize).thenApply(blob -> {
+                ByteBuffer keyBuffer = keys.join();
+                ByteBuffer nullBuffer = nulls.join();
+                int[] pageKeys = new int[count];
+                String[] values = new String[count];
+                for (int i = 0; i < count; i++) {
+                    int entry = start + i;
+                    pageKeys[i] = keyBuffer.getInt();
+                    int bits = nullBuffer.get((entry >> 3) - (start >> 3));
+                    if ((bits & 1 << (entry & 7)) == 0) {
+                        values[i] = new String(blob.array(), (int) (offsets[i] - offsets[0]),
+                                               (int) (offsets[i + 1] - offsets[i]),
+                                               StandardCharsets.UTF_8);
+                    }
+                }
+                return new Page(pageKeys, values, System.nanoTime() - issued);
+            });
+        });
+    }
+
+    /**
+     * Index of the first entry whose key is not smaller than the given key.
+     */
+    private int lowerBound(long key) throws IOException {
+        int low = 0;
+        int high = layout.count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int midKey = await(read(layout.keys + (long) mid * Integer.BYTES, Integer.BYTES))
+                    .getInt();
+            if (midKey < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private CompletableFuture<ByteBuffer> read(long position, int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        readFully(buffer, position, result);
+        return result;
+    }
+
+    private void readFully(ByteBuffer buffer, long position, CompletableFuture<ByteBuffer> result) {
+        if (!buffer.hasRemaining()) {
+            buffer.flip();
+            result.complete(buffer);
+            return;
+        }
+        channel.read(buffer, position, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer read, Void attachment) {
+                if (read < 0) {
+                    result.completeExceptionally(new EOFException("snapshot is truncated"));
+                } else {
+                    readFully(buffer, position + read, result);
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return await(future);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
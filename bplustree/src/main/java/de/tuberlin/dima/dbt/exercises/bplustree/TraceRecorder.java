@@ -0,0 +1,101 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wraps a store and records every lookup, insert and delete into a compact
+ * binary trace, which {TraceReplayer} can replay against any store.
+ * <p>
+ * Every record starts with a type byte, followed by varints: the
+ * nanoseconds since the previous record, the zigzag encoded key, and for
+ * inserts the value length plus one (0 for {null}) and the UTF-8 bytes of
+ * the value. A lookup or delete takes a few bytes.
+ * <p>
+ * Operations are recorded when they start. Operations of several threads
+ * are recorded in one order, which a replay follows.
+ */
+public class TraceRecorder implements KeyValueStore, Flushable, Closeable {
+
+    static final int LOOKUP = 0;
+
+    static final int INSERT = 1;
+
+    static final int DELETE = 2;
+
+    private final KeyValueStore target;
+
+    private final OutputStream out;
+
+    private long lastNanos = System.nanoTime();
+
+    private long records = 0;
+
+    public TraceRecorder(KeyValueStore target, OutputStream out) {
+        this.target = target;
+        this.out = new BufferedOutputStream(out, 1 << 16);
+    }
+
+    @Override
+    public String lookup(Integer key) {
+        record(LOOKUP, key, null);
+        return target.lookup(key);
+    }
+
+    @Override
+    public void insert(int key, String value) {
+        record(INSERT, key, value);
+        target.insert(key, value);
+    }
+
+    @Override
+    public String delete(Integer key) {
+        record(DELETE, key, null);
+        return target.delete(key);
+    }
+
+    /**
+     * Number of operations recorded so far.
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    private synchronized void record(int type, int key, String value) {
+        long now = System.nanoTime();
+        try {
+            out.write(type);
+            MutationLogWriter.writeVarLong(out, now - lastNanos);
+            MutationLogWriter.writeVarLong(out, MutationLogWriter.zigzag(key));
+            if (type == INSERT) {
+                if (value == null) {
+                    MutationLogWriter.writeVarLong(out, 0);
+                } else {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    MutationLogWriter.writeVarLong(out, bytes.length + 1L);
+                    out.write(bytes);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        lastNanos = now;
+        records++;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+}
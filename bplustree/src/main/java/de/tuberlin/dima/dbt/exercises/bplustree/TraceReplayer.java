@@ -0,0 +1,178 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a trace recorded by a {TraceRecorder} against a store, and
+ * reports throughput and latency percentiles.
+ * <p>
+ * The trace is decoded completely before the replay starts, so decoding
+ * does not count towards the latencies. By default, the operations run back
+ * to back as fast as the store allows. A paced replay issues every
+ * operation at the time it was recorded, relative to the start of the
+ * trace. Its latencies are measured from that time rather than from when
+ * the operation was actually issued, so a store that falls behind is charged
+ * for the queueing delay it causes.
+ * <p>
+ * Usage: {TraceReplayer trace [paced] [leaf capacity] [inner capacity]
+ * [partitions]}, where 0 partitions (the default) replays against a plain
+ * {BPlusTree}.
+ */
+public class TraceReplayer {
+
+    // waits longer than this are parked, shorter ones spin
+    private static final long SPIN_NANOS = 50_000;
+
+    private final KeyValueStore target;
+
+    private boolean paced = false;
+
+    public TraceReplayer(KeyValueStore target) {
+        this.target = target;
+    }
+
+    /**
+     * Issue the operations at the pace they were recorded at, instead of as
+     * fast as possible.
+     */
+    public TraceReplayer setPaced(boolean paced) {
+        this.paced = paced;
+        return this;
+    }
+
+    public LatencySummary replay(Path trace) throws IOException {
+        try (InputStream in = Files.newInputStream(trace)) {
+            return replay(in);
+        }
+    }
+
+    public LatencySummary replay(InputStream trace) throws IOException {
+        return replay(Trace.read(new BufferedInputStream(trace, 1 << 16)));
+    }
+
+    private LatencySummary replay(Trace trace) {
+        long[] latencies = new long[trace.size];
+        long start = System.nanoTime();
+        for (int i = 0; i < trace.size; i++) {
+            long issued;
+            if (paced) {
+                issued = start + trace.nanos[i];
+                awaitTime(issued);
+            } else {
+                issued = System.nanoTime();
+            }
+            int key = trace.keys[i];
+            switch (trace.types[i]) {
+                case TraceRecorder.LOOKUP:
+                    target.lookup(key);
+                    break;
+                case TraceRecorder.INSERT:
+                    target.insert(key, trace.values[i]);
+                    break;
+                default:
+                    target.delete(key);
+            }
+            latencies[i] = System.nanoTime() - issued;
+        }
+        return new LatencySummary(latencies, System.nanoTime() - start);
+    }
+
+    private static void awaitTime(long due) {
+        for (long now = System.nanoTime(); now < due; now = System.nanoTime()) {
+            if (due - now > SPIN_NANOS) {
+                LockSupport.parkNanos(due - now - SPIN_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * The decoded operations of a trace, column by column.
+     */
+    private static final class Trace {
+
+        byte[] types = new byte[1024];
+
+        int[] keys = new int[1024];
+
+        String[] values = new String[1024];
+
+        // time of every operation, relative to the first one
+        long[] nanos = new long[1024];
+
+        int size = 0;
+
+        static Trace read(InputStream in) throws IOException {
+            Trace trace = new Trace();
+            long time = 0;
+            for (int type = in.read(); type >= 0; type = in.read()) {
+                if (type > TraceRecorder.DELETE) {
+                    throw new IOException("unknown operation type " + type);
+                }
+                long delta = MutationLogReader.readVarLong(in);
+                time = trace.size == 0 ? 0 : time + delta;
+                int key = MutationLogReader.unzigzag(MutationLogReader.readVarLong(in));
+                String value = null;
+                if (type == TraceRecorder.INSERT) {
+                    long length = MutationLogReader.readVarLong(in);
+                    if (length > 0) {
+                        byte[] bytes = new byte[(int) (length - 1)];
+                        MutationLogReader.readFully(in, bytes);
+                        value = new String(bytes, StandardCharsets.UTF_8);
+                    }
+                }
+                trace.add((byte) type, key, value, time);
+            }
+            return trace;
+        }
+
+        private void add(byte type, int key, String value, long time) {
+            if (size == types.length) {
+                int capacity = 2 * size;
+                types = Arrays.copyOf(types, capacity);
+                keys = Arrays.copyOf(keys, capacity);
+                values = Arrays.copyOf(values, capacity);
+                nanos = Arrays.copyOf(nanos, capacity);
+            }
+            types[size] = type;
+            keys[size] = key;
+            values[size] = value;
+            nanos[size] = time;
+            size++;
+        }
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: TraceReplayer trace [paced] [leaf capacity] "
+                               + "[inner capacity] [partitions]");
+            System.exit(1);
+        }
+        boolean paced = args.length > 1 && Boolean.parseBoolean(args[1]);
+        int leafCapacity = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int innerCapacity = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        int partitions = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        KeyValueStore tree = partitions > 0
+                ? new PartitionedBPlusTree(partitions, leafCapacity, innerCapacity)
+                : new BPlusTree(leafCapacity, innerCapacity);
+        try {
+            System.out.println(new TraceReplayer(tree).setPaced(paced).replay(Paths.get(args[0])));
+        } finally {
+            if (tree instanceof Closeable) {
+                ((Closeable) tree).close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Incrementally rebuilds a tree whose nodes have become sparse through
+ * deletes.
+ * <p>
+ * Each call to step walks the leaves further left to right and feeds their
+ * entries into a bulk loader, which fills new nodes to the target fill factor
+ * and so also drops inner levels that are no longer needed. The old tree is
+ * not touched and stays readable; once all entries are copied, the new root
+ * is swapped in. If the tree is modified between two steps, the copy is stale
+ * and compaction starts over, so compaction only finishes once it gets a
+ * long enough pause between writes.
+ * <p>
+ * Until the swap, the new nodes exist next to the old ones, so compaction
+ * temporarily needs memory for a second copy of the nodes (not of the
+ * values).
+ */
+public class TreeCompactor {
+
+    // entries copied between two checks of the time budget
+    private static final int CHECK_INTERVAL = 256;
+
+    private final BPlusTree tree;
+
+    private final double fillFactor;
+
+    private BulkLoader loader;
+
+    private Iterator<Map.Entry<Integer, String>> entries;
+
+    private int expectedModCount;
+
+    private boolean done = false;
+
+    private int restarts = 0;
+
+    public TreeCompactor(BPlusTree tree, double fillFactor) {
+        this.tree = tree;
+        this.fillFactor = fillFactor;
+        start();
+    }
+
+    /**
+     * Copy entries for about maxNanos nanoseconds.
+     * @return {true} once the compacted tree has been swapped in.
+     */
+    public boolean step(long maxNanos) {
+        if (done) {
+            return true;
+        }
+        if (tree.modCount() != expectedModCount) {
+            restarts++;
+            start();
+        }
+        long deadline = System.nanoTime() + maxNanos;
+        while (entries.hasNext()) {
+            for (int i = 0; i < CHECK_INTERVAL && entries.hasNext(); i++) {
+                Map.Entry<Integer, String> entry = entries.next();
+                loader.add(entry.getKey(), entry.getValue());
+            }
+            if (maxNanos != Long.MAX_VALUE && System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+        }
+        tree.replaceRoot(loader.finish());
+        done = true;
+        return true;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Number of times compaction started over because the tree was modified.
+     */
+    public int getRestarts() {
+        return restarts;
+    }
+
+    private void start() {
+        loader = tree.bulkLoader(fillFactor);
+        entries = tree.scan(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        expectedModCount = tree.modCount();
+    }
+
+}
@@ -0,0 +1,100 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for the structural modifications of a tree,
+ * to correlate latency spikes with restructuring in standard JFR tools.
+ * <p>
+ * Levels are counted from the leaves, which are at level 0. Every event
+ * measures the time the modification itself took, without the follow-up
+ * modifications further up the tree, which get their own events. Bulk
+ * upserts that split a node into more than two emit one split per node
+ * split off, and range deletes that even out two siblings emit a steal.
+ * While no recording has the events enabled, creating and committing them
+ * compiles down to next to nothing.
+ */
+final class TreeEvents {
+
+    private static final String PREFIX = "de.tuberlin.dima.dbt.bplustree.";
+
+    private TreeEvents() {
+    }
+
+    @Name(PREFIX + "Split")
+    @Label("Node Split")
+    @Category("B+ Tree")
+    @Description("A full node was split and a new right neighbour created")
+    static final class Split extends Event {
+
+        @Label("Level")
+        int level;
+
+        @Label("Left Size")
+        int leftSize;
+
+        @Label("Right Size")
+        int rightSize;
+
+    }
+
+    @Name(PREFIX + "Steal")
+    @Label("Steal from Sibling")
+    @Category("B+ Tree")
+    @Description("An underfull node took entries from a sibling")
+    static final class Steal extends Event {
+
+        @Label("Level")
+        int level;
+
+        @Label("Node Size")
+        int nodeSize;
+
+        @Label("Sibling Size")
+        int siblingSize;
+
+    }
+
+    @Name(PREFIX + "Merge")
+    @Label("Merge with Sibling")
+    @Category("B+ Tree")
+    @Description("An underfull node was merged into a sibling")
+    static final class Merge extends Event {
+
+        @Label("Level")
+        int level;
+
+        @Label("Merged Size")
+        int mergedSize;
+
+    }
+
+    @Name(PREFIX + "RootGrowth")
+    @Label("Root Growth")
+    @Category("B+ Tree")
+    @Description("A split reached the root and the tree grew by one level")
+    static final class RootGrowth extends Event {
+
+        @Label("Height")
+        @Description("Number of levels after the growth")
+        int height;
+
+    }
+
+    @Name(PREFIX + "RootCollapse")
+    @Label("Root Collapse")
+    @Category("B+ Tree")
+    @Description("The root was left with a single child and the tree shrank by one level")
+    static final class RootCollapse extends Event {
+
+        @Label("Height")
+        @Description("Number of levels after the collapse")
+        int height;
+
+    }
+
+}
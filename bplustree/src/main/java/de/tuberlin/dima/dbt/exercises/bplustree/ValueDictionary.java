@@ -0,0 +1,72 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tree-wide dictionary that maps leaf values to int codes.
+ * <p>
+ * Leaves in dictionary mode store the codes instead of the strings, so every
+ * distinct value is kept only once. Codes are handed out in the order the
+ * values are first seen and are never reused; the dictionary is meant for
+ * small vocabularies such as status codes, not for unique payloads.
+ * The code -1 stands for {null}.
+ */
+public class ValueDictionary {
+
+    public static final int NULL_CODE = -1;
+
+    private final Map<String, Integer> codes = new HashMap<>();
+
+    private final List<String> values = new ArrayList<>();
+
+    public ValueDictionary() {
+    }
+
+    /**
+     * A dictionary that assigns the given distinct values their index as
+     * code, e.g. to restore a saved dictionary.
+     */
+    ValueDictionary(List<String> values) {
+        for (String value : values) {
+            encode(value);
+        }
+    }
+
+    /**
+     * @return The code of the value, adding it to the dictionary if needed.
+     */
+    public int encode(String value) {
+        if (value == null) {
+            return NULL_CODE;
+        }
+        Integer code = codes.get(value);
+        if (code == null) {
+            code = values.size();
+            codes.put(value, code);
+            values.add(value);
+        }
+        return code;
+    }
+
+    public String decode(int code) {
+        return code == NULL_CODE ? null : values.get(code);
+    }
+
+    /**
+     * Number of distinct values.
+     */
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * All distinct values, indexed by their code.
+     */
+    public List<String> getValues() {
+        return values;
+    }
+
+}
@@ -0,0 +1,189 @@
+package de.tuberlin.dima.dbt.exercises.bplustree.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.tuberlin.dima.dbt.exercises.bplustree.LatencySummary;
+
+/**
+ * Drives a {TreeServer} with random lookups and inserts over several
+ * connections, keeping a fixed number of pipelined requests in flight per
+ * connection, and reports throughput and latency percentiles.
+ * <p>
+ * Each connection inserts keys that no other connection uses, ascending in
+ * steps of the number of connections, so that every insert adds a key
+ * rather than replacing the value of an existing one. Lookups draw keys uniformly from the
+ * key range.
+ * <p>
+ * Usage: {LoadGenerator host port [connections] [requests per connection]
+ * [pipeline depth] [write ratio] [key range]}
+ */
+public class LoadGenerator {
+
+    private final String host;
+
+    private final int port;
+
+    private int connections = 4;
+
+    private int requestsPerConnection = 100_000;
+
+    private int pipelineDepth = 32;
+
+    private double writeRatio = 0.2;
+
+    private int keyRange = 1_000_000;
+
+    public LoadGenerator(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public LoadGenerator setConnections(int connections) {
+        this.connections = connections;
+        return this;
+    }
+
+    public LoadGenerator setRequestsPerConnection(int requestsPerConnection) {
+        this.requestsPerConnection = requestsPerConnection;
+        return this;
+    }
+
+    /**
+     * Number of requests sent ahead of their responses on each connection.
+     */
+    public LoadGenerator setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = pipelineDepth;
+        return this;
+    }
+
+    /**
+     * Fraction of the requests that are inserts, the rest are lookups.
+     */
+    public LoadGenerator setWriteRatio(double writeRatio) {
+        this.writeRatio = writeRatio;
+        return this;
+    }
+
+    /**
+     * Lookups draw keys uniformly from [0, keyRange).
+     */
+    public LoadGenerator setKeyRange(int keyRange) {
+        this.keyRange = keyRange;
+        return this;
+    }
+
+    /**
+     * Throughput and latencies of one run. The latency of a request is the
+     * time from sending it to receiving its response.
+     */
+    public static class Result extends LatencySummary {
+
+        Result(long[] latencies, long nanos) {
+            super(latencies, nanos);
+        }
+
+        public int getRequests() {
+            return getCount();
+        }
+
+        public double getRequestsPerSecond() {
+            return getThroughput();
+        }
+
+    }
+
+    public Result run() throws IOException, InterruptedException {
+        ExecutorService threads = Executors.newFixedThreadPool(connections);
+        try {
+            List<Future<long[]>> results = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int c = 0; c < connections; c++) {
+                int connection = c;
+                results.add(threads.submit(() -> runConnection(connection)));
+            }
+            long[] latencies = new long[connections * requestsPerConnection];
+            for (int c = 0; c < connections; c++) {
+                System.arraycopy(results.get(c).get(), 0, latencies,
+                                 c * requestsPerConnection, requestsPerConnection);
+            }
+            return new Result(latencies, System.nanoTime() - start);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+    private long[] runConnection(int connection) throws IOException {
+        Random random = new Random(connection);
+        int nextInsert = connection;
+        long[] latencies = new long[requestsPerConnection];
+        CompletableFuture<?>[] inFlight = new CompletableFuture<?>[pipelineDepth];
+        try (TreeClient client = new TreeClient(host, port)) {
+            for (int i = 0; i < requestsPerConnection; i++) {
+                int slot = i % pipelineDepth;
+                if (inFlight[slot] != null) {
+                    // wait for the oldest request before sending another one
+                    client.flush();
+                    inFlight[slot].join();
+                }
+                long sent = System.nanoTime();
+                CompletableFuture<?> request;
+                if (random.nextDouble() < writeRatio) {
+                    request = client.insertAsync(nextInsert, String.valueOf(nextInsert));
+                    nextInsert += connections;
+                } else {
+                    request = client.lookupAsync(random.nextInt(keyRange));
+                }
+                int index = i;
+                inFlight[slot] = request.thenRun(
+                        () -> latencies[index] = System.nanoTime() - sent);
+            }
+            client.flush();
+            for (CompletableFuture<?> request : inFlight) {
+                if (request != null) {
+                    request.join();
+                }
+            }
+        }
+        return latencies;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: LoadGenerator host port [connections] "
+                               + "[requests per connection] [pipeline depth] "
+                               + "[write ratio] [key range]");
+            System.exit(1);
+        }
+        LoadGenerator generator = new LoadGenerator(args[0], Integer.parseInt(args[1]));
+        if (args.length > 2) {
+            generator.setConnections(Integer.parseInt(args[2]));
+        }
+        if (args.length > 3) {
+            generator.setRequestsPerConnection(Integer.parseInt(args[3]));
+        }
+        if (args.length > 4) {
+            generator.setPipelineDepth(Integer.parseInt(args[4]));
+        }
+        if (args.length > 5) {
+            generator.setWriteRatio(Double.parseDouble(args[5]));
+        }
+        if (args.length > 6) {
+            generator.setKeyRange(Integer.parseInt(args[6]));
+        }
+        System.out.println(generator.run());
+    }
+
+}
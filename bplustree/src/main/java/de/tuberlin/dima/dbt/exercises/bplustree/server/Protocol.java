@@ -0,0 +1,62 @@
+package de.tuberlin.dima.dbt.exercises.bplustree.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary protocol between {TreeServer} and {TreeClient}.
+ * <p>
+ * A request is an opcode byte followed by its arguments; ints are 4 bytes
+ * big endian, strings an int length (-1 for {null}) and the UTF-8 bytes:
+ * <p>
+ * {pre}
+ * LOOKUP  key                  -> OK value
+ * INSERT  key value            -> OK
+ * DELETE  key                  -> OK old value
+ * SCAN    from to limit        -> OK count (key value)*
+ * {pre}
+ * <p>
+ * A response starts with a status byte; an ERROR status is followed by a
+ * message string. Clients may send further requests before reading the
+ * responses; the server answers every connection in request order.
+ */
+public final class Protocol {
+
+    public static final byte LOOKUP = 1;
+
+    public static final byte INSERT = 2;
+
+    public static final byte DELETE = 3;
+
+    public static final byte SCAN = 4;
+
+    public static final byte OK = 0;
+
+    public static final byte ERROR = 1;
+
+    private Protocol() {
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
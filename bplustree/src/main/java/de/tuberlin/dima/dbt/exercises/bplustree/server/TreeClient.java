@@ -0,0 +1,216 @@
+package de.tuberlin.dima.dbt.exercises.bplustree.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Client for a {TreeServer}.
+ * <p>
+ * The async methods only buffer their request and return right away, so
+ * many requests can be pipelined on one connection; call flush to send
+ * them. A background thread reads the responses in order and completes the
+ * futures. The other methods send their request at once and wait for the
+ * response. Requests that the server rejects fail with an
+ * {IllegalStateException}.
+ */
+public class TreeClient implements Closeable {
+
+    private final Socket socket;
+
+    private final DataOutputStream out;
+
+    private final DataInputStream in;
+
+    // requests waiting for a response, in the order they were sent
+    private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+
+    // the first error of the connection, all later requests fail with it
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+    public TreeClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        Thread reader = new Thread(this::readResponses, "tree-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public CompletableFuture<String> lookupAsync(int key) {
+        return send(Protocol.LOOKUP, out -> out.writeInt(key), TreeClient::readValue);
+    }
+
+    public CompletableFuture<Void> insertAsync(int key, String value) {
+        return send(Protocol.INSERT, out -> {
+            out.writeInt(key);
+            Protocol.writeString(out, value);
+        }, in -> null);
+    }
+
+    public CompletableFuture<String> deleteAsync(int key) {
+        return send(Protocol.DELETE, out -> out.writeInt(key), TreeClient::readValue);
+    }
+
+    /**
+     * The entries with keys between from and to, both inclusive, but at most
+     * limit many.
+     */
+    public CompletableFuture<List<Map.Entry<Integer, String>>> scanAsync(int from, int to,
+                                                                         int limit) {
+        return send(Protocol.SCAN, out -> {
+            out.writeInt(from);
+            out.writeInt(to);
+            out.writeInt(limit);
+        }, in -> {
+            int count = in.readInt();
+            List<Map.Entry<Integer, String>> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int key = in.readInt();
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(key, Protocol.readString(in)));
+            }
+            return entries;
+        });
+    }
+
+    public String lookup(int key) {
+        return flushAndAwait(lookupAsync(key));
+    }
+
+    public void insert(int key, String value) {
+        flushAndAwait(insertAsync(key, value));
+    }
+
+    public String delete(int key) {
+        return flushAndAwait(deleteAsync(key));
+    }
+
+    public List<Map.Entry<Integer, String>> scan(int from, int to, int limit) {
+        return flushAndAwait(scanAsync(from, to, limit));
+    }
+
+    /**
+     * Send all buffered requests.
+     */
+    public void flush() {
+        synchronized (out) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private interface Request {
+
+        void writeTo(DataOutputStream out) throws IOException;
+
+    }
+
+    private interface Reply<T> {
+
+        T readFrom(DataInputStream in) throws IOException;
+
+    }
+
+    private static class Pending {
+
+        final Reply<?> reply;
+
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        Pending(Reply<?> reply) {
+            this.reply = reply;
+        }
+
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> send(byte opcode, Request request, Reply<T> reply) {
+        Pending next = new Pending(reply);
+        synchronized (out) {
+            // queue before sending, so the response always finds its request
+            pending.add(next);
+            try {
+                out.writeByte(opcode);
+                request.writeTo(out);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        if (failure.get() != null) {
+            // the connection failed, possibly after fail drained the queue
+            failPending();
+        }
+        return (CompletableFuture<T>) next.result;
+    }
+
+    private <T> T flushAndAwait(CompletableFuture<T> future) {
+        flush();
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new UncheckedIOException((IOException) e.getCause());
+        }
+    }
+
+    private static String readValue(DataInputStream in) throws IOException {
+        return Protocol.readString(in);
+    }
+
+    private void readResponses() {
+        try {
+            while (true) {
+                byte status = in.readByte();
+                Pending next = pending.poll();
+                if (next == null) {
+                    throw new IOException("response without request");
+                }
+                if (status == Protocol.OK) {
+                    next.result.complete(next.reply.readFrom(in));
+                } else {
+                    next.result.completeExceptionally(
+                            new IllegalStateException(Protocol.readString(in)));
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        failure.compareAndSet(null, e);
+        failPending();
+    }
+
+    private void failPending() {
+        for (Pending next = pending.poll(); next != null; next = pending.poll()) {
+            next.result.completeExceptionally(failure.get());
+        }
+    }
+
+}
@@ -0,0 +1,398 @@
+package de.tuberlin.dima.dbt.exercises.bplustree.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import de.tuberlin.dima.dbt.exercises.bplustree.BPlusTree;
+
+/**
+ * Serves a {BPlusTree} over TCP with the {Protocol}.
+ * <p>
+ * Every connection is handled by its own thread, a virtual thread on JDKs
+ * that have them, and a pooled platform thread otherwise. Requests are
+ * pipelined: the connection keeps reading requests while earlier ones are
+ * still running, and a second thread writes the responses in request order,
+ * flushing whenever it has caught up.
+ * <p>
+ * Lookups and scans run on the connection thread under a shared read lock.
+ * Inserts and deletes of all connections are queued for a single writer
+ * thread, which drains the queue and applies everything queued so far in
+ * one pass under the write lock. A read waits for the earlier writes of
+ * its own connection, so every client reads its own writes.
+ */
+public class TreeServer implements Closeable {
+
+    public static final int DEFAULT_MAX_BATCH = 1024;
+
+    private final BPlusTree tree;
+
+    private final ServerSocket serverSocket;
+
+    private final int maxBatch;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final BlockingQueue<Write> writes = new LinkedBlockingQueue<>();
+
+    private final ExecutorService connections = newConnectionExecutor();
+
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+    private final Thread acceptor;
+
+    private final Thread writer;
+
+    private final LongAdder writeCount = new LongAdder();
+
+    private final LongAdder batchCount = new LongAdder();
+
+    private volatile boolean closed = false;
+
+    /**
+     * Serve the tree on the loopback interface; port 0 picks a free port.
+     */
+    public TreeServer(BPlusTree tree, int port) throws IOException {
+        this(tree, new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+             DEFAULT_MAX_BATCH);
+    }
+
+    /**
+     * @param maxBatch Maximum number of writes applied in one pass.
+     */
+    public TreeServer(BPlusTree tree, InetSocketAddress address, int maxBatch)
+            throws IOException {
+        this.tree = tree;
+        this.maxBatch = maxBatch;
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(address);
+        acceptor = new Thread(this::acceptConnections, "tree-server-acceptor");
+        writer = new Thread(this::applyWrites, "tree-server-writer");
+        acceptor.setDaemon(true);
+        writer.setDaemon(true);
+    }
+
+    public void start() {
+        writer.start();
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Number of inserts and deletes applied so far.
+     */
+    public long getWriteCount() {
+        return writeCount.sum();
+    }
+
+    /**
+     * Number of passes the writes were applied in; less than the number of
+     * writes if writes arrived faster than they were applied.
+     */
+    public long getBatchCount() {
+        return batchCount.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        writer.interrupt();
+        connections.shutdownNow();
+    }
+
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            // JDK 21 and later
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "tree-server-connection");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    ///// Connections
+
+    private void acceptConnections() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                sockets.add(socket);
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                // the server socket was closed, or the connection failed early
+            }
+        }
+    }
+
+    /**
+     * A response that is written once its request has completed.
+     */
+    private interface Response {
+
+        void writeTo(DataOutputStream out) throws IOException;
+
+    }
+
+    // marks the end of the responses of a connection
+    private static final CompletableFuture<Response> END = new CompletableFuture<>();
+
+    private void serve(Socket socket) {
+        BlockingQueue<CompletableFuture<Response>> responses = new LinkedBlockingQueue<>();
+        try (Socket connection = socket) {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(connection.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(connection.getOutputStream(), 1 << 16));
+            CompletableFuture<Void> responder = CompletableFuture.runAsync(
+                    () -> writeResponses(responses, out), connections);
+            try {
+                readRequests(in, responses);
+            } finally {
+                responses.add(END);
+                responder.join();
+            }
+        } catch (IOException | RuntimeException e) {
+            // the client went away, its connection is simply dropped
+        } finally {
+            sockets.remove(socket);
+        }
+    }
+
+    private void readRequests(DataInputStream in,
+                              BlockingQueue<CompletableFuture<Response>> responses)
+            throws IOException {
+        // completes when the last write of this connection was applied
+        CompletableFuture<?> lastWrite = CompletableFuture.completedFuture(null);
+        for (int opcode = in.read(); opcode >= 0; opcode = in.read()) {
+            CompletableFuture<Response> response;
+            switch (opcode) {
+                case Protocol.LOOKUP: {
+                    int key = in.readInt();
+                    response = read(lastWrite, () -> {
+                        String value = tree.lookup(key);
+                        return out -> {
+                            out.writeByte(Protocol.OK);
+                            Protocol.writeString(out, value);
+                        };
+                    });
+                    break;
+                }
+                case Protocol.SCAN: {
+                    int from = in.readInt();
+                    int to = in.readInt();
+                    int limit = in.readInt();
+                    response = read(lastWrite, () -> scan(from, to, limit));
+                    break;
+                }
+                case Protocol.INSERT: {
+                    int key = in.readInt();
+                    String value = Protocol.readString(in);
+                    Write write = write(t -> {
+                        t.insert(key, value);
+                        return null;
+                    });
+                    lastWrite = write.result;
+                    response = respond(write.result, ignored -> out -> out.writeByte(Protocol.OK));
+                    break;
+                }
+                case Protocol.DELETE: {
+                    int key = in.readInt();
+                    Write write = write(t -> t.delete(key));
+                    lastWrite = write.result;
+                    response = respond(write.result, value -> out -> {
+                        out.writeByte(Protocol.OK);
+                        Protocol.writeString(out, (String) value);
+                    });
+                    break;
+                }
+                default:
+                    // the stream cannot be parsed any further
+                    responses.add(CompletableFuture.completedFuture(
+                            error("unknown opcode " + opcode)));
+                    return;
+            }
+            responses.add(response);
+        }
+    }
+
+    private void writeResponses(BlockingQueue<CompletableFuture<Response>> responses,
+                                DataOutputStream out) {
+        try {
+            while (true) {
+                CompletableFuture<Response> next = responses.poll();
+                if (next == null) {
+                    // caught up with the requests, hand the responses to the client
+                    out.flush();
+                    next = responses.take();
+                }
+                if (next == END) {
+                    out.flush();
+                    return;
+                }
+                Response response;
+                try {
+                    response = next.get();
+                } catch (ExecutionException e) {
+                    response = error(String.valueOf(e.getCause()));
+                }
+                response.writeTo(out);
+            }
+        } catch (IOException | InterruptedException e) {
+            // the client went away or the server is closing
+        }
+    }
+
+    private static Response error(String message) {
+        return out -> {
+            out.writeByte(Protocol.ERROR);
+            Protocol.writeString(out, message);
+        };
+    }
+
+    private static CompletableFuture<Response> respond(CompletableFuture<Object> result,
+                                                       Function<Object, Response> ok) {
+        return result.handle((value, e) -> e == null ? ok.apply(value) : error(String.valueOf(e)));
+    }
+
+    ///// Reads
+
+    /**
+     * Run a read under the read lock, after the given write of the same
+     * connection.
+     */
+    private CompletableFuture<Response> read(CompletableFuture<?> after,
+                                             Supplier<Response> read) {
+        Supplier<Response> locked = () -> {
+            lock.readLock().lock();
+            try {
+                return read.get();
+            } catch (RuntimeException e) {
+                return error(String.valueOf(e));
+            } finally {
+                lock.readLock().unlock();
+            }
+        };
+        if (after.isDone()) {
+            return CompletableFuture.completedFuture(locked.get());
+        }
+        return after.handle((ignored, e) -> null).thenApplyAsync(ignored -> locked.get(),
+                                                                  connections);
+    }
+
+    private Response scan(int from, int to, int limit) {
+        List<Map.Entry<Integer, String>> entries = new ArrayList<>();
+        Iterator<Map.Entry<Integer, String>> it = tree.scan(from, to);
+        while (entries.size() < limit && it.hasNext()) {
+            entries.add(it.next());
+        }
+        return out -> {
+            out.writeByte(Protocol.OK);
+            out.writeInt(entries.size());
+            for (Map.Entry<Integer, String> entry : entries) {
+                out.writeInt(entry.getKey());
+                Protocol.writeString(out, entry.getValue());
+            }
+        };
+    }
+
+    ///// Writes
+
+    private static class Write {
+
+        final Function<BPlusTree, Object> operation;
+
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        Write(Function<BPlusTree, Object> operation) {
+            this.operation = operation;
+        }
+
+    }
+
+    private Write write(Function<BPlusTree, Object> operation) {
+        Write write = new Write(operation);
+        writes.add(write);
+        return write;
+    }
+
+    /**
+     * Apply the queued writes in batches, in the order they were queued.
+     * The results are only published after the write lock is released, so
+     * reads waiting for them do not wait for the lock.
+     */
+    private void applyWrites() {
+        List<Write> batch = new ArrayList<>();
+        Object[] results = new Object[maxBatch];
+        RuntimeException[] errors = new RuntimeException[maxBatch];
+        while (!closed) {
+            try {
+                batch.add(writes.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            writes.drainTo(batch, maxBatch - 1);
+            lock.writeLock().lock();
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    try {
+                        results[i] = batch.get(i).operation.apply(tree);
+                        errors[i] = null;
+                    } catch (RuntimeException e) {
+                        errors[i] = e;
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            // count before completing, so a client never sees a write that is not counted yet
+            writeCount.add(batch.size());
+            batchCount.increment();
+            for (int i = 0; i < batch.size(); i++) {
+                if (errors[i] != null) {
+                    batch.get(i).result.completeExceptionally(errors[i]);
+                } else {
+                    batch.get(i).result.complete(results[i]);
+                }
+                results[i] = null;
+            }
+            batch.clear();
+        }
+    }
+
+}
@@ -1,7 +1,28 @@
 package de.tuberlin.dima.dbt.exercises.bplustree;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import jdk.jfr.EventType;
+
+import de.tuberlin.dima.dbt.exercises.bplustree.server.LoadGenerator;
+import de.tuberlin.dima.dbt.exercises.bplustree.server.TreeClient;
+import de.tuberlin.dima.dbt.exercises.bplustree.server.TreeServer;
+
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.rules.Timeout;
 
 import static de.tuberlin.dima.dbt.grading.bplustree.BPlusTreeMatcher.isTree;
@@ -16,6 +37,9 @@ public class BPlusTreeTest {
     @Rule
     public Timeout globalTimeout = new Timeout(1000);
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private BPlusTree tree;
 
     ///// Lookup tests
@@ -64,6 +88,183 @@ public class BPlusTreeTest {
         assertThat(value, is(nullValue()));
     }
 
+    @Test
+    public void findKeysInWideInnerNode() {
+        // given (separator search over an inner node with 7 keys)
+        tree = newTree(newNode(keys(10, 20, 30, 40, 50, 60, 70),
+                nodes(newLeaf(keys(1), values("1"), 2),
+                      newLeaf(keys(10), values("10"), 2),
+                      newLeaf(keys(20), values("20"), 2),
+                      newLeaf(keys(30), values("30"), 2),
+                      newLeaf(keys(40), values("40"), 2),
+                      newLeaf(keys(50), values("50"), 2),
+                      newLeaf(keys(60), values("60"), 2),
+                      newLeaf(keys(70, 80), values("70", "80"), 2)), 8),
+                2, 8);
+        // then
+        for (int key : new int[] {1, 10, 20, 30, 40, 50, 60, 70, 80}) {
+            assertThat(tree.lookup(key), is(String.valueOf(key)));
+        }
+        assertThat(tree.lookup(0), is(nullValue()));
+        assertThat(tree.lookup(45), is(nullValue()));
+        assertThat(tree.lookup(90), is(nullValue()));
+    }
+
+    @Test
+    public void findKeysInBatch() {
+        // given
+        tree = newTree(newNode(keys(3),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")))));
+        // when
+        String[] values = tree.lookupBatch(keys(4, 1, 5, 3, 2));
+        // then
+        assertThat(values, is(values("d", "a", null, "c", "b")));
+    }
+
+    @Test
+    public void findKeysInBatchLargerThanGroup() {
+        // given
+        tree = newEmptyTree();
+        Integer[] keys = new Integer[3 * BPlusTree.BATCH_GROUP_SIZE + 1];
+        for (int i = 0; i < keys.length; i++) {
+            tree.insert(2 * i, String.valueOf(2 * i));
+            keys[i] = keys.length - i;
+        }
+        // when
+        String[] values = tree.lookupBatch(keys);
+        // then
+        for (int i = 0; i < keys.length; i++) {
+            assertThat(values[i], is(tree.lookup(keys[i])));
+        }
+    }
+
+    @Test
+    public void findKeyInLookupCache() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2, 3), values("a", "b", "c")));
+        tree.enableLookupCache(8);
+        // when
+        tree.lookup(2);
+        String value = tree.lookup(2);
+        // then
+        assertThat(value, is("b"));
+        assertThat(tree.getLookupCache().getHitCount(), is(1L));
+        assertThat(tree.getLookupCache().getMissCount(), is(1L));
+    }
+
+    @Test
+    public void deleteInvalidatesLookupCache() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2, 3), values("a", "b", "c")));
+        tree.enableLookupCache(8);
+        tree.lookup(2);
+        // when
+        tree.delete(2);
+        // then
+        assertThat(tree.lookup(2), is(nullValue()));
+    }
+
+    @Test
+    public void findKeysWithFingerprints() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2, 3, 4), values("a", "b", "c", "d")));
+        tree.enableFingerprints();
+        // when
+        tree.insert(5, "e");
+        tree.delete(1);
+        // then
+        assertThat(tree.lookup(2), is("b"));
+        assertThat(tree.lookup(5), is("e"));
+        assertThat(tree.lookup(1), is(nullValue()));
+        for (Node child : ((InnerNode) tree.rootNode()).getChildren()) {
+            if (child != null) {
+                assertThat(((LeafNode) child).hasFingerprints(), is(true));
+            }
+        }
+    }
+
+    @Test
+    public void findKeysWithMembershipFilter() {
+        // given
+        tree = newTree(newNode(keys(3),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")))));
+        tree.enableMembershipFilter(4, 0.01);
+        // when
+        tree.insert(5, "e");
+        tree.delete(1);
+        // then
+        assertThat(tree.lookup(5), is("e"));
+        assertThat(tree.lookup(1), is(nullValue()));
+        for (int key = 10; key < 110; key++) {
+            assertThat(tree.lookup(key), is(nullValue()));
+        }
+        assertThat(tree.getMembershipFilter().size(), is(4));
+        assertThat(tree.getMembershipFilter().getFalsePositiveRate() < 0.2,
+                   is(true));
+    }
+
+    @Test
+    public void findKeysWithCompressedKeys() {
+        // given
+        tree = newTree(newLeaf(keys(1000, 1001, 1003, 1004),
+                               values("a", "b", "c", "d")));
+        tree.enableKeyCompression();
+        // when
+        tree.insert(1002, "x");
+        tree.delete(1000);
+        // then
+        assertThat(tree.lookup(1002), is("x"));
+        assertThat(tree.lookup(1000), is(nullValue()));
+        assertThat(tree, isTree(newTree(newNode(keys(1003),
+                nodes(newLeaf(keys(1001, 1002), values("b", "x")),
+                      newLeaf(keys(1003, 1004), values("c", "d")))))));
+        LeafNode leaf = (LeafNode) ((InnerNode) tree.rootNode()).getChildren()[1];
+        assertThat(leaf.hasCompressedKeys(), is(true));
+    }
+
+    @Test
+    public void findValuesWithValueDictionary() {
+        // given
+        tree = newTree(newLeaf(keys(1, 2, 3, 4), values("ok", "error", "ok", "ok")));
+        tree.enableValueDictionary();
+        // when
+        tree.insert(5, "error");
+        tree.delete(1);
+        // then
+        assertThat(tree.lookup(2), is("error"));
+        assertThat(tree.lookup(5), is("error"));
+        assertThat(tree.getValueDictionary().size(), is(2));
+        assertThat(tree, isTree(newTree(newNode(keys(4),
+                nodes(newLeaf(keys(2, 3), values("error", "ok")),
+                      newLeaf(keys(4, 5), values("ok", "error")))))));
+    }
+
+    @Test
+    public void rankSelectAndCount() {
+        // given
+        tree = newEmptyTree();
+        for (int i = 0; i < 100; i++) {
+            int key = (i * 37) % 100;
+            tree.insert(2 * key, String.valueOf(key));
+        }
+        tree.delete(0);
+        tree.delete(100);
+        // then (even keys 2..198 without 100)
+        assertThat(tree.size(), is(98));
+        assertThat(tree.rank(2), is(0));
+        assertThat(tree.rank(51), is(25));
+        assertThat(tree.rank(102), is(49));
+        assertThat(tree.select(0), is(2));
+        assertThat(tree.select(49), is(102));
+        assertThat(tree.select(97), is(198));
+        assertThat(tree.select(98), is(nullValue()));
+        assertThat(tree.count(10, 20), is(6));
+        assertThat(tree.count(95, 105), is(4));
+        assertThat(tree.count(20, 10), is(0));
+    }
+
     ///// Insertion tests
 
     @Test
@@ -355,6 +556,53 @@ public class BPlusTreeTest {
         )));
     }
 
+    @Test
+    public void splitLeafWithSmallerLeafCapacity() {
+        // given (leaves hold 2 keys, inner nodes 4)
+        tree = newTree(newLeaf(keys(1, 2), values("a", "b"), 2), 2, 4);
+        // when
+        tree.insert(3, "c");
+        // then
+        assertThat(tree, isTree(newTree(newNode(
+                keys(2), nodes(newLeaf(keys(1), values("a"), 2),
+                               newLeaf(keys(2, 3), values("b", "c"), 2)), 4),
+                2, 4)));
+    }
+
+    @Test
+    public void lookupAfterManyInserts() {
+        // given
+        tree = newEmptyTree();
+        // when
+        for (int i = 0; i < 500; i++) {
+            int key = (i * 7919) % 500;
+            tree.insert(key, String.valueOf(key));
+        }
+        // then
+        for (int key = 0; key < 500; key++) {
+            assertThat(tree.lookup(key), is(String.valueOf(key)));
+        }
+        assertThat(tree.lookup(500), is(nullValue()));
+    }
+
+    @Test
+    public void insertExistingKeyReplacesValue() {
+        // given
+        tree = newTree(newNode(keys(3),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4, 5, 6),
+                                             values("c", "d", "e", "f")))));
+        // when
+        tree.insert(5, "x");
+        // then
+        assertThat(tree, isTree(newTree(newNode(
+                keys(3),
+                nodes(newLeaf(keys(1, 2), values("a", "b")),
+                      newLeaf(keys(3, 4, 5, 6), values("c", "d", "x", "f")))))));
+        assertThat(tree.size(), is(6));
+        assertThat(new BPlusTreeValidator(tree).validate(), is(nullValue()));
+    }
+
     ///// Deletion tests
 
     @Test
@@ -463,6 +711,22 @@ public class BPlusTreeTest {
                         newLeaf(keys(15, 16), values("15", "16")))))));
     }
 
+    @Test
+    public void deleteMergesAllEntriesWithLargerLeafCapacity() {
+        // given (leaves hold 8 keys, inner nodes 2)
+        tree = newTree(newNode(keys(5),
+                nodes(newLeaf(keys(1, 2, 3, 4), values("1", "2", "3", "4"), 8),
+                      newLeaf(keys(5, 6, 7, 8), values("5", "6", "7", "8"), 8)), 2),
+                8, 2);
+        // when
+        String value = tree.delete(1);
+        // then
+        assertThat(value, is("1"));
+        assertThat(tree, isTree(newTree(newLeaf(
+                keys(2, 3, 4, 5, 6, 7, 8),
+                values("2", "3", "4", "5", "6", "7", "8"), 8), 8, 2)));
+    }
+
     @Test
     public void deleteFromLeafWith1Element() {
         // given
@@ -488,6 +752,940 @@ public class BPlusTreeTest {
                 keys(91,99,101,105), values("a","b","c","d")))));
     }
 
+    @Test
+    public void deleteRangeDropsCoveredLeaf() {
+        // given
+        tree = newTree(newNode(keys(3, 5),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")),
+                                     newLeaf(keys(5, 6), values("e", "f")))));
+        // when
+        int deleted = tree.deleteRange(2, 4);
+        // then
+        assertThat(deleted, is(3));
+        assertThat(tree, isTree(newTree(newLeaf(
+                keys(1, 5, 6), values("a", "e", "f")))));
+    }
+
+    @Test
+    public void deleteRangeFromLargeTree() {
+        // given
+        tree = newEmptyTree();
+        for (int key = 0; key < 300; key++) {
+            tree.insert(key, String.valueOf(key));
+        }
+        // when
+        int deleted = tree.deleteRange(50, 249);
+        // then
+        assertThat(deleted, is(200));
+        assertThat(tree.size(), is(100));
+        assertThat(new BPlusTreeValidator(tree).validate(), is(nullValue()));
+        for (int key = 0; key < 300; key++) {
+            String expected = key < 50 || key >= 250 ? String.valueOf(key) : null;
+            assertThat(tree.lookup(key), is(expected));
+        }
+    }
+
+    @Test
+    public void clearTree() {
+        // given
+        tree = newTree(newNode(keys(3),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")))));
+        // when
+        tree.clear();
+        // then
+        assertThat(tree, isTree(newEmptyTree()));
+        assertThat(tree.size(), is(0));
+    }
+
+    @Test
+    public void reuseNodesFromNodePool() {
+        // given
+        tree = newEmptyTree();
+        tree.enableNodePool(64);
+        for (int key = 0; key < 100; key++) {
+            tree.insert(key, String.valueOf(key));
+        }
+        // when
+        tree.deleteRange(20, 79);
+        for (int key = 20; key < 80; key++) {
+            tree.insert(key, String.valueOf(key));
+        }
+        // then
+        assertThat(tree.getNodePool().getReusedCount() > 0, is(true));
+        assertThat(new BPlusTreeValidator(tree).validate(), is(nullValue()));
+        for (int key = 0; key < 100; key++) {
+            assertThat(tree.lookup(key), is(String.valueOf(key)));
+        }
+    }
+
+    ///// Scan and compaction tests
+
+    @Test
+    public void scanRangeAcrossLeaves() {
+        // given
+        tree = newEmptyTree();
+        for (int key = 0; key < 100; key += 2) {
+            tree.insert(key, String.valueOf(key));
+        }
+        // when
+        List<Integer> keys = new ArrayList<>();
+        Iterator<Map.Entry<Integer, String>> entries = tree.scan(13, 31);
+        while (entries.hasNext()) {
+            Map.Entry<Integer, String> entry = entries.next();
+            assertThat(entry.getValue(), is(String.valueOf(entry.getKey())));
+            keys.add(entry.getKey());
+        }
+        // then
+        assertThat(keys, is(Arrays.asList(14, 16, 18, 20, 22, 24, 26, 28, 30)));
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void scanFailsAfterModification() {
+        // given
+        tree = newEmptyTree();
+        for (int key = 0; key < 10; key++) {
+            tree.insert(key, String.valueOf(key));
+        }
+        Iterator<Map.Entry<Integer, String>> entries = tree.scan(0, 9);
+        entries.next();
+        // when
+        tree.insert(10, "10");
+        entries.next();
+    }
+
+    @Test
+    public void compactSparseTree() {
+        // given
+        tree = newEmptyTree();
+        for (int key = 0; key < 1000; key++) {
+            tree.insert(key, String.valueOf(key));
+        }
+        tree.deleteRange(10, 989);
+        int heightBefore = height(tree.rootNode());
+        // when
+        tree.compact(1.0);
+        // then
+        assertThat(height(tree.rootNode()) < heightBefore, is(true));
+        assertThat(new BPlusTreeValidator(tree).validate(), is(nullValue()));
+        assertThat(tree.size(), is(20));
+        for (int key = 0; key < 1000; key++) {
+            String expected = key < 10 || key >= 990 ? String.valueOf(key) : null;
+            assertThat(tree.lookup(key), is(expected));
+        }
+    }
+
+    @Test
+    public void compactAfterReinsertingKeys() {
+        // given
+        tree = newEmptyTree();
+        for (int key = 0; key < 100; key++) {
+            tree.insert(key, "a");
+        }
+        for (int key = 0; key < 100; key += 7) {
+            tree.insert(key, "b");
+        }
+        // when
+        tree.compact(1.0);
+        // then
+        assertThat(new BPlusTreeValidator(tree).validate(), is(nullValue()));
+        assertThat(tree.size(), is(100));
+        for (int key = 0; key < 100; key++) {
+            assertThat(tree.lookup(key), is(key % 7 == 0 ? "b" : "a"));
+        }
+    }
+
+    @Test
+    public void compactRebuildsMembershipFilter() {
+        // given
+        tree = newEmptyTree();
+        tree.enableMembershipFilter(1000, 0.01);
+        for (int key = 0; key < 1000; key++) {
+            tree.insert(key, String.valueOf(key));
+        }
+        tree.deleteRange(10, 989);
+        MembershipFilter before = tree.getMembershipFilter();
+        // when
+        tree.compact(1.0);
+        // then
+        MembershipFilter after = tree.getMembershipFilter();
+        assertThat(after == before, is(false));
+        assertThat(after.size(), is(20));
+        for (int key = 0; key < 1000; key++) {
+            String expected = key < 10 || key >= 990 ? String.valueOf(key) : null;
+            assertThat(tree.lookup(key), is(expected));
+        }
+    }
+
+    @Test
+    public void compactInStepsRestartsAfterModification() {
+        // given
+        tree = newEmptyTree();
+        for (int key = 0; key < 2000; key++) {
+            tree.insert(key, String.valueOf(key));
+        }
+        TreeCompactor compactor = new TreeCompactor(tree, 0.75);
+        compactor.step(0);
+        // when
+        tree.insert(5000, "5000");
+        while (!compactor.step(0)) {
+            assertThat(tree.lookup(1000), is("1000"));
+        }
+        // then
+        assertThat(compactor.getRestarts(), is(1));
+        assertThat(new BPlusTreeValidator(tree).validate(), is(nullValue()));
+        assertThat(tree.size(), is(2001));
+        assertThat(tree.lookup(5000), is("5000"));
+    }
+
+    ///// Snapshot tests
+
+    @Test
+    public void writeAndReadSnapshot() throws IOException {
+        // given
+        tree = newEmptyTree(4, 6);
+        for (int key = 0; key < 500; key++) {
+            tree.insert(key * 3, key % 10 == 0 ? null : "v\u00e4" + key);
+        }
+        Path path = folder.newFile("tree.snapshot").toPath();
+        // when
+        tree.writeSnapshot(path);
+        BPlusTree loaded = BPlusTree.readSnapshot(path, 0.75);
+        // then
+        assertThat(loaded.getLeafCapacity(), is(4));
+        assertThat(loaded.getInnerCapacity(), is(6));
+        assertThat(loaded.size(), is(500));
+        assertThat(new BPlusTreeValidator(loaded).validate(), is(nullValue()));
+        for (int key = 0; key < 1500; key++) {
+            assertThat(loaded.lookup(key), is(tree.lookup(key)));
+        }
+    }
+
+    @Test
+    public void writeAndReadSnapshotWithDictionaryAndFilter() throws IOException {
+        // given
+        tree = newEmptyTree();
+        tree.enableValueDictionary();
+        tree.enableMembershipFilter(100, 0.01);
+        tree.insert(7, "gone");
+        for (int key = 0; key < 100; key++) {
+            tree.insert(key, key % 3 == 0 ? "x" : "y\u00e4");
+        }
+        Path path = folder.newFile("options.snapshot").toPath();
+        // when
+        tree.writeSnapshot(path);
+        BPlusTree loaded = BPlusTree.readSnapshot(path);
+        // then
+        assertThat(loaded.getValueDictionary().getValues(),
+                   is(Arrays.asList("gone", "x", "y\u00e4")));
+        Node leaf = loaded.rootNode();
+        while (leaf instanceof InnerNode) {
+            leaf = ((InnerNode) leaf).getChildren()[0];
+        }
+        assertThat(((LeafNode) leaf).hasEncodedValues(), is(true));
+        assertThat(loaded.getMembershipFilter().size(), is(100));
+        for (int key = 0; key < 200; key++) {
+            assertThat(loaded.lookup(key), is(tree.lookup(key)));
+        }
+    }
+
+    @Test
+    public void writeAndReadEmptySnapshot() throws IOException {
+        // given
+        tree = newEmptyTree();
+        Path path = folder.newFile("empty.snapshot").toPath();
+        // when
+        tree.writeSnapshot(path);
+        BPlusTree loaded = BPlusTree.readSnapshot(path);
+        // then
+        assertThat(loaded, isTree(newEmptyTree()));
+    }
+
+    @Test(expected = IOException.class)
+    public void readInvalidSnapshot() throws IOException {
+        // given
+        Path path = folder.newFile("invalid.snapshot").toPath();
+        Files.write(path, new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        // when
+        BPlusTree.readSnapshot(path);
+    }
+
+    @Test
+    public void scanSnapshotWithReadAhead() throws IOException {
+        // given
+        tree = newEmptyTree();
+        for (int key = 0; key < 2000; key++) {
+            tree.insert(key * 2, key % 5 == 0 ? null : String.valueOf(key));
+        }
+        Path path = folder.newFile("scan.snapshot").toPath();
+        tree.writeSnapshot(path);
+        // when
+        List<Map.Entry<Integer, String>> entries = new ArrayList<>();
+        try (SnapshotScanner scanner = new SnapshotScanner(path, 101, 3001, 50, 4)) {
+            while (scanner.hasNext()) {
+                entries.add(scanner.next());
+            }
+            // then
+            assertThat(scanner.getPagesRead(), is(29));
+            assertThat(scanner.getWindow() <= 4, is(true));
+        }
+        List<Map.Entry<Integer, String>> expected = new ArrayList<>();
+        for (Iterator<Map.Entry<Integer, String>> it = tree.scan(101, 3001); it.hasNext(); ) {
+            expected.add(it.next());
+        }
+        assertThat(entries, is(expected));
+    }
+
+    ///// Mutation log tests
+
+    @Test
+    public void replayMutationLogIntoReplica() throws IOException {
+        // given
+        tree = newEmptyTree();
+        Path path = folder.newFile("mutations.log").toPath();
+        try (MutationLogWriter writer = new MutationLogWriter(Files.newOutputStream(path))) {
+            tree.addMutationListener(writer);
+            for (int key = -50; key < 150; key++) {
+                tree.insert(key, key % 7 == 0 ? null : String.valueOf(key));
+            }
+            tree.deleteRange(20, 79);
+            tree.delete(-50);
+            tree.delete(1000);
+        }
+        BPlusTree replica = newEmptyTree();
+        MutationApplier applier = new MutationApplier(replica, 16);
+        // when
+        int count;
+        try (MutationLogReader reader = new MutationLogReader(Files.newInputStream(path))) {
+            count = applier.applyAll(reader);
+        }
+        // then
+        assertThat(count, is(202));
+        assertThat(applier.getAppliedSequence(), is(tree.getSequence()));
+        assertThat(replica.size(), is(tree.size()));
+        for (int key = -60; key < 160; key++) {
+            assertThat(replica.lookup(key), is(tree.lookup(key)));
+        }
+    }
+
+    @Test
+    public void reportNoMutationForClearingAnEmptyTree() {
+        // given
+        tree = newEmptyTree();
+        List<Mutation> mutations = new ArrayList<>();
+        tree.addMutationListener(mutations::add);
+        // when
+        tree.clear();
+        tree.insert(1, "a");
+        tree.clear();
+        tree.clear();
+        // then
+        assertThat(mutations.size(), is(2));
+        assertThat(mutations.get(1).getType(), is(Mutation.Type.CLEAR));
+        assertThat(mutations.get(1).getSequence(), is(2L));
+        assertThat(tree.getSequence(), is(2L));
+    }
+
+    @Test
+    public void replayRepeatedMutationsOfAKeyInOneBatch() {
+        // given
+        tree = newEmptyTree();
+        BPlusTree replica = newEmptyTree();
+        MutationApplier applier = new MutationApplier(replica, 100);
+        tree.addMutationListener(applier);
+        tree.insert(1, "a");
+        tree.insert(2, "a");
+        applier.flush();
+        // when
+        tree.delete(1);
+        tree.insert(1, "b");
+        tree.insert(2, "b");
+        tree.insert(3, "a");
+        List<Map.Entry<Integer, String>> upsert =
+                Arrays.asList(new AbstractMap.SimpleImmutableEntry<>(3, "b"));
+        tree.upsertSorted(upsert.iterator());
+        tree.insert(3, "c");
+        tree.insert(4, "a");
+        tree.delete(4);
+        applier.flush();
+        // then
+        assertThat(replica.size(), is(tree.size()));
+        for (int key = 0; key < 6; key++) {
+            assertThat(replica.lookup(key), is(tree.lookup(key)));
+        }
+        assertThat(replica.lookup(1), is("b"));
+        assertThat(replica.lookup(3), is("c"));
+    }
+
+    @Test
+    public void encodeMutations() throws IOException {
+        // given
+        List<Mutation> mutations = Arrays.asList(
+                Mutation.insert(1, Integer.MIN_VALUE, "\u00e4"),
+                Mutation.insert(2, Integer.MAX_VALUE, null),
+                Mutation.delete(3, -1),
+                Mutation.deleteRange(5, -10, Integer.MAX_VALUE),
+                Mutation.clear(6),
+                Mutation.upsert(7, 42, "x"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (MutationLogWriter writer = new MutationLogWriter(out)) {
+            for (Mutation mutation : mutations) {
+                writer.write(mutation);
+            }
+        }
+        // when
+        List<Mutation> read = new ArrayList<>();
+        MutationLogReader reader = new MutationLogReader(new ByteArrayInputStream(out.toByteArray()));
+        for (Mutation mutation = reader.read(); mutation != null; mutation = reader.read()) {
+            read.add(mutation);
+        }
+        // then
+        assertThat(read, is(mutations));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void applierDetectsMissingMutations() {
+        // given
+        MutationApplier applier = new MutationApplier(newEmptyTree(), 16);
+        applier.onMutation(Mutation.insert(1, 1, "a"));
+        // when
+        applier.onMutation(Mutation.insert(3, 3, "c"));
+    }
+
+    ///// Partitioned tree tests
+
+    @Test
+    public void scanAcrossPartitions() {
+        // given
+        try (PartitionedBPlusTree partitioned = new PartitionedBPlusTree(4, 4, 4)) {
+            for (int key : new int[] {Integer.MAX_VALUE, -5, 0, Integer.MIN_VALUE, 1 << 30, 7}) {
+                partitioned.insert(key, String.valueOf(key));
+            }
+            // when
+            partitioned.delete(0);
+            List<Integer> keys = new ArrayList<>();
+            for (Map.Entry<Integer, String> entry
+                    : partitioned.scan(Integer.MIN_VALUE, Integer.MAX_VALUE)) {
+                keys.add(entry.getKey());
+            }
+            // then
+            assertThat(partitioned.getPartitionCount(), is(4));
+            assertThat(keys, is(Arrays.asList(Integer.MIN_VALUE, -5, 7, 1 << 30,
+                                              Integer.MAX_VALUE)));
+            assertThat(partitioned.lookup(7), is("7"));
+            assertThat(partitioned.lookup(0), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void splitLargePartition() {
+        // given
+        try (PartitionedBPlusTree partitioned =
+                     new PartitionedBPlusTree(new int[0], 4, 4, 100, 8)) {
+            // when
+            List<CompletableFuture<Void>> inserts = new ArrayList<>();
+            for (int key = 0; key < 500; key++) {
+                inserts.add(partitioned.insertAsync(key, String.valueOf(key)));
+            }
+            inserts.forEach(CompletableFuture::join);
+            // then
+            assertThat(partitioned.getPartitionCount() > 1, is(true));
+            assertThat(partitioned.size(), is(500));
+            assertThat(partitioned.scan(100, 399).size(), is(300));
+            for (int key = 0; key < 500; key++) {
+                assertThat(partitioned.lookup(key), is(String.valueOf(key)));
+            }
+        }
+    }
+
+    @Test
+    public void keepOrderOfOperationsAcrossSplits() {
+        // given
+        try (PartitionedBPlusTree partitioned =
+                     new PartitionedBPlusTree(new int[0], 4, 4, 20, 16)) {
+            // when
+            List<CompletableFuture<Void>> inserts = new ArrayList<>();
+            for (int key = 0; key < 300; key++) {
+                for (int round = 0; round < 3; round++) {
+                    inserts.add(partitioned.insertAsync(key, String.valueOf(round)));
+                }
+            }
+            inserts.forEach(CompletableFuture::join);
+            // then
+            assertThat(partitioned.getPartitionCount() > 1, is(true));
+            assertThat(partitioned.size(), is(300));
+            for (int key = 0; key < 300; key++) {
+                assertThat(partitioned.lookup(key), is("2"));
+            }
+        }
+    }
+
+    ///// Server tests
+
+    @Test
+    public void pipelineRequestsToServer() throws IOException {
+        // given
+        tree = newEmptyTree();
+        try (TreeServer server = new TreeServer(tree, 0);
+             TreeClient client = connect(server)) {
+            // when
+            List<CompletableFuture<Void>> inserts = new ArrayList<>();
+            for (int key = 0; key < 200; key++) {
+                inserts.add(client.insertAsync(key, key == 7 ? null : String.valueOf(key)));
+            }
+            CompletableFuture<String> lookup = client.lookupAsync(42);
+            client.flush();
+            // then
+            inserts.forEach(CompletableFuture::join);
+            assertThat(lookup.join(), is("42"));
+            assertThat(client.lookup(7), is(nullValue()));
+            assertThat(client.delete(199), is("199"));
+            assertThat(client.scan(195, 1000, 10).size(), is(4));
+            assertThat(client.scan(0, 1000, 10).get(9).getKey(), is(9));
+            assertThat(server.getWriteCount(), is(201L));
+        }
+        assertThat(tree.size(), is(199));
+    }
+
+    @Test
+    public void generateLoadOnServer() throws Exception {
+        // given
+        tree = newEmptyTree(16);
+        try (TreeServer server = new TreeServer(tree, 0)) {
+            server.start();
+            // when
+            LoadGenerator.Result result = new LoadGenerator("localhost", server.getPort())
+                    .setConnections(2)
+                    .setRequestsPerConnection(1000)
+                    .setPipelineDepth(16)
+                    .setWriteRatio(0.5)
+                    .setKeyRange(1000)
+                    .run();
+            // then
+            assertThat(result.getRequests(), is(2000));
+            assertThat(result.getLatencyNanos(50) <= result.getLatencyNanos(99), is(true));
+            assertThat((long) tree.size(), is(server.getWriteCount()));
+            assertThat(new BPlusTreeValidator(tree).validate(), is(nullValue()));
+        }
+    }
+
+    private static TreeClient connect(TreeServer server) throws IOException {
+        server.start();
+        return new TreeClient("localhost", server.getPort());
+    }
+
+    private static int height(Node node) {
+        int height = 0;
+        while (node instanceof InnerNode) {
+            node = ((InnerNode) node).getChildren()[0];
+            height++;
+        }
+        return height;
+    }
+
+    ///// Merge tests
+
+    @Test
+    public void upsertSortedEntries() {
+        // given
+        tree = newEmptyTree();
+        for (int key = 0; key < 200; key += 2) {
+            tree.insert(key, String.valueOf(key));
+        }
+        List<Map.Entry<Integer, String>> delta = new ArrayList<>();
+        for (int key = -20; key < 250; key += 3) {
+            delta.add(new AbstractMap.SimpleImmutableEntry<>(key, "new"));
+        }
+        // when
+        tree.upsertSorted(delta.iterator());
+        // then
+        assertThat(new BPlusTreeValidator(tree).validate(), is(nullValue()));
+        assertThat(tree.size(), is(100 + 90 - 33));
+        for (int key = -20; key < 250; key++) {
+            String expected = Math.floorMod(key, 3) == 1 ? "new"
+                    : key >= 0 && key < 200 && key % 2 == 0 ? String.valueOf(key) : null;
+            assertThat(tree.lookup(key), is(expected));
+        }
+    }
+
+    @Test
+    public void mergeTrees() {
+        // given
+        tree = newEmptyTree();
+        BPlusTree other = newEmptyTree();
+        for (int key = 0; key < 100; key++) {
+            tree.insert(key, "tree");
+            other.insert(key + 50, "other");
+        }
+        BPlusTree replica = newEmptyTree();
+        MutationApplier applier = new MutationApplier(replica, 1000, tree.getSequence());
+        replica.mergeFrom(tree);
+        tree.addMutationListener(applier);
+        // when
+        tree.mergeFrom(other);
+        applier.flush();
+        // then
+        assertThat(new BPlusTreeValidator(tree).validate(), is(nullValue()));
+        assertThat(tree.size(), is(150));
+        assertThat(tree.lookup(49), is("tree"));
+        assertThat(tree.lookup(50), is("other"));
+        assertThat(tree.lookup(149), is("other"));
+        assertThat(replica.size(), is(150));
+        assertThat(replica.lookup(50), is("other"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void upsertRejectsUnsortedEntries() {
+        // given
+        tree = newEmptyTree();
+        List<Map.Entry<Integer, String>> delta = Arrays.asList(
+                new AbstractMap.SimpleImmutableEntry<>(2, "a"),
+                new AbstractMap.SimpleImmutableEntry<>(1, "b"));
+        // when
+        tree.upsertSorted(delta.iterator());
+    }
+
+    @Test
+    public void upsertKeepsLastValueOfEqualKeys() {
+        // given
+        tree = newEmptyTree();
+        tree.insert(2, "x");
+        List<Map.Entry<Integer, String>> delta = Arrays.asList(
+                new AbstractMap.SimpleImmutableEntry<>(1, "a"),
+                new AbstractMap.SimpleImmutableEntry<>(2, "b"),
+                new AbstractMap.SimpleImmutableEntry<>(2, "c"),
+                new AbstractMap.SimpleImmutableEntry<>(3, "d"),
+                new AbstractMap.SimpleImmutableEntry<>(3, "e"),
+                new AbstractMap.SimpleImmutableEntry<>(3, "f"));
+        // when
+        tree.upsertSorted(delta.iterator());
+        // then
+        assertThat(tree.size(), is(3));
+        assertThat(tree.lookup(1), is("a"));
+        assertThat(tree.lookup(2), is("c"));
+        assertThat(tree.lookup(3), is("f"));
+    }
+
+    ///// Trace tests
+
+    @Test
+    public void recordAndReplayTrace() throws IOException {
+        // given
+        tree = newEmptyTree();
+        Path path = folder.newFile("operations.trace").toPath();
+        try (TraceRecorder recorder = new TraceRecorder(tree, Files.newOutputStream(path))) {
+            for (int key = 0; key < 100; key++) {
+                recorder.insert(key, key % 10 == 0 ? null : "\u00e4" + key);
+                recorder.lookup(key / 2);
+            }
+            for (int key = 0; key < 100; key += 3) {
+                recorder.delete(key);
+            }
+            assertThat(recorder.getRecords(), is(234L));
+        }
+        BPlusTree replayed = newEmptyTree();
+        // when
+        LatencySummary summary = new TraceReplayer(replayed).replay(path);
+        LatencySummary paced = new TraceReplayer(newEmptyTree()).setPaced(true).replay(path);
+        // then
+        assertThat(summary.getCount(), is(234));
+        assertThat(paced.getCount(), is(234));
+        assertThat(summary.getLatencyNanos(50) <= summary.getLatencyNanos(100), is(true));
+        assertThat(replayed.size(), is(tree.size()));
+        for (int key = 0; key < 100; key++) {
+            assertThat(replayed.lookup(key), is(tree.lookup(key)));
+        }
+    }
+
+    ///// Latency histogram tests
+
+    @Test
+    public void recordLatenciesByStructuralModification() {
+        // given
+        tree = newEmptyTree();
+        tree.enableLatencyHistograms();
+        // when
+        for (int key = 0; key < 100; key++) {
+            tree.insert(key, String.valueOf(key));
+            tree.lookup(key);
+        }
+        // then
+        OperationLatencies latencies = tree.getLatencyHistograms();
+        LatencyHistogram.Summary plain =
+                latencies.getHistogram(OperationLatencies.Operation.INSERT, false).summary();
+        LatencyHistogram.Summary structural =
+                latencies.getHistogram(OperationLatencies.Operation.INSERT, true).summary();
+        assertThat(plain.getCount() > 0, is(true));
+        assertThat(structural.getCount() > 0, is(true));
+        assertThat(plain.getCount() + structural.getCount(), is(100L));
+        assertThat(latencies.getHistogram(OperationLatencies.Operation.LOOKUP, false)
+                           .summary().getCount(), is(100L));
+        assertThat(plain.getPercentile(50) <= plain.getPercentile(99.9), is(true));
+        assertThat(plain.getPercentile(100), is(plain.getMax()));
+        assertThat(latencies.exportText().contains(
+                "bplustree_operation_latency_seconds_count{operation=\"lookup\","
+                + "structural=\"false\"} 100\n"), is(true));
+    }
+
+    @Test
+    public void histogramBucketsBoundRelativeError() {
+        // given
+        LatencyHistogram histogram = new LatencyHistogram();
+        // when
+        for (long nanos = 1; nanos <= 1_000_000; nanos++) {
+            histogram.record(nanos);
+        }
+        // then
+        LatencyHistogram.Summary summary = histogram.summary();
+        assertThat(summary.getCount(), is(1_000_000L));
+        for (double percentile : new double[] {1, 50, 90, 99, 99.9}) {
+            long exact = (long) (percentile * 10_000);
+            long reported = summary.getPercentile(percentile);
+            assertThat(reported >= exact && reported <= exact + exact / 16, is(true));
+        }
+        assertThat(summary.getPercentile(100), is(1_000_000L));
+    }
+
+    ///// Memory stats tests
+
+    @Test
+    public void reportMemoryStats() {
+        // given
+        tree = new BPlusTree(4, 4);
+        for (int key = 0; key < 100; key++) {
+            tree.insert(key, String.valueOf(key));
+        }
+        // when
+        MemoryStats stats = tree.memoryStats();
+        // then
+        assertThat(stats.getHeight(), is(height(tree.rootNode()) + 1));
+        assertThat(stats.getUsedKeySlots(0), is(100L));
+        assertThat(stats.getKeySlots(0), is(4L * stats.getLeafCount()));
+        assertThat(stats.getNodeCount(stats.getHeight() - 1), is(1));
+        assertThat(stats.getLeafFill() > 0.5, is(true));
+        assertThat(stats.getWastedBytes() < stats.getTotalBytes(), is(true));
+        assertThat(stats.getTotalBytes(), is(stats.getKeyBytes() + stats.getValueBytes()
+                + stats.getPointerBytes() + stats.getOverheadBytes()));
+    }
+
+    @Test
+    public void memoryStatsFollowInsertsWithoutSplits() {
+        // given
+        tree = new BPlusTree(4, 4);
+        tree.insert(1, "a");
+        MemoryStats before = tree.memoryStats();
+        // when
+        tree.insert(2, "b");
+        MemoryStats after = tree.memoryStats();
+        // then
+        assertThat(after.getUsedKeySlots(0), is(2L));
+        assertThat(after.getKeyBytes() - before.getKeyBytes(), is((long) MemoryStats.INTEGER_BYTES));
+        assertThat(before.getWastedBytes() - after.getWastedBytes(),
+                   is(2L * MemoryStats.REFERENCE));
+    }
+
+    @Test
+    public void memoryStatsCountCompressedLeaves() {
+        // given
+        tree = new BPlusTree(16, 16);
+        for (int key = 0; key < 1000; key++) {
+            tree.insert(key, key % 2 == 0 ? "even" : "odd");
+        }
+        MemoryStats plain = tree.memoryStats();
+        // when
+        tree.enableKeyCompression();
+        tree.enableValueDictionary();
+        MemoryStats compressed = tree.memoryStats();
+        // then
+        assertThat(compressed.getKeyBytes() < plain.getKeyBytes() / 2, is(true));
+        assertThat(compressed.getValueBytes() < plain.getValueBytes() / 2, is(true));
+        assertThat(compressed.getWastedBytes() < plain.getWastedBytes(), is(true));
+        assertThat(compressed.getPointerBytes(), is(plain.getPointerBytes()));
+        // when
+        tree.insert(1000, "even");
+        // then
+        assertThat(tree.memoryStats().getUsedKeySlots(0), is(1001L));
+        assertThat(tree.memoryStats().getKeyBytes() < plain.getKeyBytes() / 2, is(true));
+    }
+
+    ///// Learned routing tests
+
+    @Test
+    public void routeThroughLinearModels() {
+        // given
+        tree = new BPlusTree(4, 8);
+        for (int key = 0; key < 1000; key++) {
+            tree.insert(3 * key, String.valueOf(key));
+        }
+        // when
+        tree.enableLearnedRouting();
+        tree.insert(3001, "x");
+        // then
+        InnerNode root = (InnerNode) tree.rootNode();
+        assertThat(root.usesLearnedRouting(), is(true));
+        for (int key = 0; key < 1000; key++) {
+            assertThat(tree.lookup(3 * key), is(String.valueOf(key)));
+            assertThat(tree.lookup(3 * key + 1), is(nullValue()));
+        }
+        assertThat(tree.lookup(3001), is("x"));
+        assertThat(new BPlusTreeValidator(tree).validate(), is(nullValue()));
+    }
+
+    @Test
+    public void countLearnedModelsInMemoryStats() {
+        // given
+        tree = new BPlusTree(4, 8);
+        for (int key = 0; key < 1000; key++) {
+            tree.insert(3 * key, String.valueOf(key));
+        }
+        MemoryStats before = tree.memoryStats();
+        // when
+        tree.enableLearnedRouting();
+        MemoryStats after = tree.memoryStats();
+        // then
+        assertThat(after.getOverheadBytes() > before.getOverheadBytes(), is(true));
+        assertThat(after.getKeyBytes(), is(before.getKeyBytes()));
+        // when
+        tree.disableLearnedRouting();
+        // then
+        assertThat(tree.memoryStats().getOverheadBytes(), is(before.getOverheadBytes()));
+    }
+
+    @Test
+    public void fallBackToSearchForSkewedSeparators() {
+        // given
+        InnerNode node = newNode(keys(1, 2, 3, 4, 5, 6, 7, 1000),
+                                 nodes(newLeaf(keys(0), values("a")),
+                                       newLeaf(keys(1), values("b")),
+                                       newLeaf(keys(2), values("c")),
+                                       newLeaf(keys(3), values("d")),
+                                       newLeaf(keys(4), values("e")),
+                                       newLeaf(keys(5), values("f")),
+                                       newLeaf(keys(6), values("g")),
+                                       newLeaf(keys(7), values("h")),
+                                       newLeaf(keys(1000), values("i"))), 8);
+        tree = newTree(node, 4, 8);
+        // when
+        tree.enableLearnedRouting();
+        // then
+        assertThat(node.usesLearnedRouting(), is(false));
+        assertThat(tree.lookup(5), is("f"));
+        assertThat(tree.lookup(1000), is("i"));
+    }
+
+    @Test
+    public void resetLearnedRoutingOfPooledNodes() {
+        // given
+        NodePool pool = new NodePool(CAPACITY, CAPACITY, 4);
+        Node[] children = nodes(newLeaf(keys(0), values("a")),
+                                newLeaf(keys(1), values("b")),
+                                newLeaf(keys(2), values("c")),
+                                newLeaf(keys(3), values("d")));
+        InnerNode node = pool.innerNode(keys(1, 2, 3), children);
+        node.enableLearnedRouting();
+        assertThat(node.usesLearnedRouting(), is(true));
+        // when
+        pool.release(node);
+        InnerNode reused = pool.innerNode(keys(1, 2, 3), children);
+        // then
+        assertThat(reused == node, is(true));
+        assertThat(reused.usesLearnedRouting(), is(false));
+    }
+
+    ///// Validator tests
+
+    @Test
+    public void validateLargeTree() {
+        // given (large enough to be checked in parallel)
+        tree = newEmptyTree(16);
+        for (int i = 0; i < 40000; i++) {
+            tree.insert((i * 7919) % 40000, "v");
+        }
+        // then
+        assertThat(new BPlusTreeValidator(tree).validate(), is(nullValue()));
+    }
+
+    @Test
+    public void validateUnsortedLeaf() {
+        // given
+        tree = newTree(newNode(keys(3),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(4, 3), values("d", "c")))));
+        // when
+        BPlusTreeValidator.Violation violation = new BPlusTreeValidator(tree).validate();
+        // then
+        assertThat(violation.toString(),
+                   is("node [1]: keys 4 and 3 are not strictly increasing"));
+    }
+
+    @Test
+    public void validateKeyOutsideOfSeparatorBounds() {
+        // given
+        tree = newTree(newNode(keys(3),
+                               nodes(newLeaf(keys(1, 3), values("a", "c")),
+                                     newLeaf(keys(4, 5), values("d", "e")))));
+        // when
+        BPlusTreeValidator.Violation violation = new BPlusTreeValidator(tree).validate();
+        // then
+        assertThat(violation.toString(),
+                   is("node [0]: key 3 is outside of the separator bounds [-inf, 2]"));
+    }
+
+    ///// Event tests
+
+    @Test
+    public void describeSplitEvent() {
+        // when
+        EventType type = EventType.getEventType(TreeEvents.Split.class);
+        // then
+        assertThat(type.getName(), is("de.tuberlin.dima.dbt.bplustree.Split"));
+        assertThat(type.getCategoryNames(), is(Arrays.asList("B+ Tree")));
+        assertThat(type.getField("level").getTypeName(), is("int"));
+        assertThat(type.getField("leftSize").getTypeName(), is("int"));
+        assertThat(type.getField("rightSize").getTypeName(), is("int"));
+    }
+
+    ///// Printer tests
+
+    @Test
+    public void printTreeAsText() {
+        // given
+        tree = newTree(newNode(keys(3),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")))));
+        // then
+        assertThat(tree.toString(), is("[3,,,] =>\n"
+                + "  [1,2,,] => [a,b,,]\n"
+                + "  [3,4,,] => [c,d,,]"));
+        assertThat(new BPlusTreePrinter(tree).setMaxFanOut(1).toString(),
+                   is("[3,,,] =>\n"
+                      + "  [1,2,,] => [a,b,,]\n"
+                      + "  ... (1 more)"));
+    }
+
+    @Test
+    public void printTreeAsJsonAndDot() {
+        // given
+        tree = newTree(newNode(keys(3),
+                               nodes(newLeaf(keys(1, 2), values("a", "b")),
+                                     newLeaf(keys(3, 4), values("c", "d")))));
+        // then
+        assertThat(new BPlusTreePrinter(tree)
+                           .setFormat(BPlusTreePrinter.Format.JSON).toString(),
+                   is("{\"keys\":[3],\"children\":["
+                      + "{\"keys\":[1,2],\"values\":[\"a\",\"b\"]},"
+                      + "{\"keys\":[3,4],\"values\":[\"c\",\"d\"]}]}"));
+        assertThat(new BPlusTreePrinter(tree).setMaxDepth(0)
+                           .setFormat(BPlusTreePrinter.Format.DOT).toString(),
+                   is("digraph BPlusTree {\n"
+                      + "  node [shape=record];\n"
+                      + "  n0 [label=\"3\"];\n"
+                      + "  n1 [shape=plaintext, label=\"2 more\"];\n"
+                      + "  n0 -> n1 [style=dashed];\n"
+                      + "}"));
+    }
+
 //    @Test
 //    public void deleteFrom2d() { // TODO
 //        // given
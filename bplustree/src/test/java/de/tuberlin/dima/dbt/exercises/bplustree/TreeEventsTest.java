@@ -0,0 +1,93 @@
+package de.tuberlin.dima.dbt.exercises.bplustree;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static de.tuberlin.dima.dbt.exercises.bplustree.BPlusTreeUtilities.*;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records the tree events with Java Flight Recorder. Starting a recording
+ * takes a while, so these tests are kept apart from the ones that run under
+ * a timeout.
+ */
+public class TreeEventsTest {
+
+    private static final String PREFIX = "de.tuberlin.dima.dbt.bplustree.";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordSplitsOfBulkUpserts() throws IOException {
+        // given
+        BPlusTree tree = newEmptyTree();
+        List<Map.Entry<Integer, String>> upsert = new ArrayList<>();
+        for (int key = 0; key < 100; key++) {
+            upsert.add(new AbstractMap.SimpleImmutableEntry<>(key, "v" + key));
+        }
+        // when
+        List<RecordedEvent> events = record(() -> tree.upsertSorted(upsert.iterator()));
+        // then
+        int leafSplits = 0;
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals(PREFIX + "Split")
+                    && event.getInt("level") == 0) {
+                assertTrue(event.getInt("leftSize") <= CAPACITY);
+                assertTrue(event.getInt("rightSize") <= CAPACITY);
+                leafSplits++;
+            }
+        }
+        // 100 entries need 25 leaves, all but the first are split off
+        assertThat(leafSplits, is(24));
+    }
+
+    @Test
+    public void recordRebalancingOfRangeDeletes() throws IOException {
+        // given
+        BPlusTree tree = newEmptyTree();
+        for (int key = 0; key < 100; key++) {
+            tree.insert(key, "v" + key);
+        }
+        // when
+        List<RecordedEvent> events = record(() -> tree.deleteRange(10, 89));
+        // then
+        int rebalancings = 0;
+        for (RecordedEvent event : events) {
+            String name = event.getEventType().getName();
+            if (name.equals(PREFIX + "Merge") || name.equals(PREFIX + "Steal")) {
+                rebalancings++;
+            }
+        }
+        assertTrue(rebalancings > 0);
+    }
+
+    private List<RecordedEvent> record(Runnable operation) throws IOException {
+        Path path = folder.newFile("tree.jfr").toPath();
+        try (Recording recording = new Recording()) {
+            recording.enable(TreeEvents.Split.class);
+            recording.enable(TreeEvents.Steal.class);
+            recording.enable(TreeEvents.Merge.class);
+            recording.start();
+            operation.run();
+            recording.stop();
+            recording.dump(path);
+        }
+        return RecordingFile.readAllEvents(path);
+    }
+
+}